@@ -0,0 +1,169 @@
+/*
+ * Copyright 2020 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.Process;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.tensorflow.lite.examples.detection.tflite.Detector;
+
+/** Tests that DetectorPool delivers frames in submission order, however they finish. */
+@RunWith(AndroidJUnit4.class)
+public class DetectorPoolTest {
+
+  private static final int POOL_SIZE = 3;
+  private static final long TIMEOUT_SECONDS = 5;
+
+  /** A frame whose detection blocks until the test releases it. */
+  private static final class Frame {
+    final int index;
+    final CountDownLatch release = new CountDownLatch(1);
+
+    Frame(final int index) {
+      this.index = index;
+    }
+  }
+
+  private final List<Frame> frames = new ArrayList<>();
+  private final List<Integer> delivered = new ArrayList<>();
+  private final AtomicInteger concurrentCallbacks = new AtomicInteger();
+  private volatile boolean overlappingCallbacks;
+  private DetectorPool<Frame> pool;
+
+  @Before
+  public void setUp() {
+    final List<Detector> detectors = new ArrayList<>();
+    for (int i = 0; i < POOL_SIZE; ++i) {
+      detectors.add(newFakeDetector());
+    }
+    pool =
+        new DetectorPool<>(
+            detectors,
+            Process.THREAD_PRIORITY_DEFAULT,
+            (detector, frame) -> awaitUninterruptibly(frame.release),
+            frame -> {
+              if (concurrentCallbacks.incrementAndGet() > 1) {
+                overlappingCallbacks = true;
+              }
+              synchronized (delivered) {
+                delivered.add(frame.index);
+                delivered.notifyAll();
+              }
+              concurrentCallbacks.decrementAndGet();
+            });
+  }
+
+  @After
+  public void tearDown() {
+    for (final Frame frame : frames) {
+      frame.release.countDown();
+    }
+    pool.close();
+  }
+
+  @Test
+  public void framesFinishingOutOfOrderShouldBeDeliveredInOrder() throws InterruptedException {
+    assertThat(pool.isIdle()).isTrue();
+    for (int i = 0; i < POOL_SIZE; ++i) {
+      assertThat(pool.submit(newFrame())).isTrue();
+    }
+    assertThat(pool.isIdle()).isFalse();
+    assertThat(pool.hasCapacity()).isFalse();
+    assertThat(pool.submit(new Frame(-1))).isFalse();
+
+    // The later frames finish first, and wait for frame 0.
+    frames.get(2).release.countDown();
+    frames.get(1).release.countDown();
+    frames.get(0).release.countDown();
+    awaitDelivered(3);
+    assertThat(delivered).containsExactly(0, 1, 2).inOrder();
+    assertThat(pool.hasCapacity()).isTrue();
+    assertThat(pool.isIdle()).isTrue();
+    assertThat(overlappingCallbacks).isFalse();
+  }
+
+  @Test
+  public void deliveryShouldFreeCapacityOneFrameAtATime() throws InterruptedException {
+    for (int i = 0; i < POOL_SIZE; ++i) {
+      assertThat(pool.submit(newFrame())).isTrue();
+    }
+    // Finished frames stay in flight until every earlier frame has been delivered.
+    frames.get(1).release.countDown();
+    assertThat(pool.hasCapacity()).isFalse();
+
+    frames.get(0).release.countDown();
+    awaitDelivered(2);
+    assertThat(delivered).containsExactly(0, 1).inOrder();
+    // Only frame 2 is in flight, so two more fit, on the workers of frames 0 and 1.
+    assertThat(pool.submit(newFrame())).isTrue();
+    assertThat(pool.submit(newFrame())).isTrue();
+    assertThat(pool.hasCapacity()).isFalse();
+
+    frames.get(4).release.countDown();
+    frames.get(3).release.countDown();
+    frames.get(2).release.countDown();
+    awaitDelivered(5);
+    assertThat(delivered).containsExactly(0, 1, 2, 3, 4).inOrder();
+    assertThat(pool.hasCapacity()).isTrue();
+    assertThat(overlappingCallbacks).isFalse();
+  }
+
+  private Frame newFrame() {
+    final Frame frame = new Frame(frames.size());
+    frames.add(frame);
+    return frame;
+  }
+
+  private void awaitDelivered(final int count) throws InterruptedException {
+    final long deadlineMs = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+    synchronized (delivered) {
+      while (delivered.size() < count) {
+        final long remainingMs = deadlineMs - System.currentTimeMillis();
+        assertThat(remainingMs).isGreaterThan(0L);
+        delivered.wait(remainingMs);
+      }
+    }
+  }
+
+  private static void awaitUninterruptibly(final CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** The pool only hands detectors to the task and closes them, so no method needs to work. */
+  private static Detector newFakeDetector() {
+    return (Detector)
+        Proxy.newProxyInstance(
+            Detector.class.getClassLoader(),
+            new Class<?>[] {Detector.class},
+            (proxy, method, args) -> null);
+  }
+}
@@ -33,7 +33,9 @@ import androidx.test.ext.junit.runners.AndroidJUnit4;
 import androidx.test.platform.app.InstrumentationRegistry;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Scanner;
 import org.junit.Before;
@@ -107,6 +109,34 @@ public class DetectorTest {
     }
   }
 
+  @Test
+  public void batchedResultsShouldMatchSingleImages() throws Exception {
+    Canvas canvas = new Canvas(croppedBitmap);
+    canvas.drawBitmap(loadImage("table.jpg"), frameToCropTransform, null);
+    final Bitmap flippedBitmap =
+        Bitmap.createBitmap(croppedBitmap.getWidth(), croppedBitmap.getHeight(), Config.ARGB_8888);
+    final Matrix flip = new Matrix();
+    flip.postScale(-1, 1, croppedBitmap.getWidth() / 2f, 0);
+    new Canvas(flippedBitmap).drawBitmap(croppedBitmap, flip, null);
+    final List<Bitmap> bitmaps = Arrays.asList(croppedBitmap, flippedBitmap);
+
+    final List<List<Recognition>> batchResults = detector.recognizeImages(bitmaps);
+
+    assertThat(batchResults).hasSize(bitmaps.size());
+    for (int i = 0; i < bitmaps.size(); ++i) {
+      final List<Recognition> expected = detector.recognizeImage(bitmaps.get(i));
+      final List<Recognition> results = batchResults.get(i);
+      assertThat(results).hasSize(expected.size());
+      for (int j = 0; j < expected.size(); ++j) {
+        assertThat(results.get(j).getTitle()).isEqualTo(expected.get(j).getTitle());
+        assertThat(matchBoundingBoxes(results.get(j).getLocation(), expected.get(j).getLocation()))
+            .isTrue();
+        assertThat(matchConfidence(results.get(j).getConfidence(), expected.get(j).getConfidence()))
+            .isTrue();
+      }
+    }
+  }
+
   // Confidence tolerance: absolute 1%
   private static boolean matchConfidence(float a, float b) {
     return abs(a - b) < 0.01;
@@ -124,6 +154,89 @@ public class DetectorTest {
     return overlappedArea > 0.95 * areaA && overlappedArea > 0.95 * areaB;
   }
 
+  /** Converts even-sized ARGB pixels to I420 planes with the BT.601 video range coefficients. */
+  private static void toI420(
+      int[] argb, int width, int height, ByteBuffer yPlane, ByteBuffer uPlane, ByteBuffer vPlane) {
+    for (int j = 0; j < height; ++j) {
+      for (int i = 0; i < width; ++i) {
+        final int pixel = argb[j * width + i];
+        final int r = (pixel >> 16) & 0xff;
+        final int g = (pixel >> 8) & 0xff;
+        final int b = pixel & 0xff;
+        yPlane.put(j * width + i, (byte) (((66 * r + 129 * g + 25 * b + 128) >> 8) + 16));
+        if ((i & 1) == 0 && (j & 1) == 0) {
+          final int uv = (j / 2) * (width / 2) + i / 2;
+          uPlane.put(uv, (byte) (((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128));
+          vPlane.put(uv, (byte) (((112 * r - 94 * g - 18 * b + 128) >> 8) + 128));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void fusedInputResultsShouldMatchBitmapInput() throws Exception {
+    final Bitmap image = loadImage("table.jpg");
+    final int width = image.getWidth();
+    final int height = image.getHeight();
+    final int[] argb = new int[width * height];
+    image.getPixels(argb, 0, width, 0, 0, width, height);
+    final ByteBuffer yPlane = ByteBuffer.allocate(width * height);
+    final ByteBuffer uPlane = ByteBuffer.allocate((width / 2) * (height / 2));
+    final ByteBuffer vPlane = ByteBuffer.allocate(uPlane.capacity());
+    toI420(argb, width, height, yPlane, uPlane, vPlane);
+
+    // The camera frame converted in full and drawn into the crop, as without fused preprocessing.
+    ImageUtils.convertYUV420ToARGB8888(
+        yPlane,
+        uPlane,
+        vPlane,
+        width,
+        height,
+        width,
+        width / 2,
+        1,
+        ImageUtils.YuvLayout.PLANAR,
+        argb);
+    final Bitmap frame = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+    frame.setPixels(argb, 0, width, 0, 0, width, height);
+    final Matrix frameToCrop =
+        ImageUtils.getTransformationMatrix(
+            width, height, MODEL_INPUT_SIZE, MODEL_INPUT_SIZE, 0, false);
+    new Canvas(croppedBitmap).drawBitmap(frame, frameToCrop, null);
+    final List<Recognition> expected = detector.recognizeImage(croppedBitmap);
+
+    final Matrix cropToFrame = new Matrix();
+    frameToCrop.invert(cropToFrame);
+    final float[] cropToFrameValues = new float[9];
+    cropToFrame.getValues(cropToFrameValues);
+    final ByteBuffer modelInput =
+        ByteBuffer.allocateDirect(MODEL_INPUT_SIZE * MODEL_INPUT_SIZE * 3);
+    ImageUtils.convertYUV420ToRGB888(
+        yPlane,
+        uPlane,
+        vPlane,
+        width,
+        height,
+        width,
+        width / 2,
+        1,
+        cropToFrameValues,
+        MODEL_INPUT_SIZE,
+        MODEL_INPUT_SIZE,
+        modelInput);
+    final List<Recognition> results = detector.recognizeImage(modelInput);
+
+    assertThat(expected).isNotEmpty();
+    assertThat(results).hasSize(expected.size());
+    for (int i = 0; i < expected.size(); ++i) {
+      assertThat(results.get(i).getTitle()).isEqualTo(expected.get(i).getTitle());
+      assertThat(matchBoundingBoxes(results.get(i).getLocation(), expected.get(i).getLocation()))
+          .isTrue();
+      assertThat(matchConfidence(results.get(i).getConfidence(), expected.get(i).getConfidence()))
+          .isTrue();
+    }
+  }
+
   private static Bitmap loadImage(String fileName) throws Exception {
     AssetManager assetManager =
         InstrumentationRegistry.getInstrumentation().getContext().getAssets();
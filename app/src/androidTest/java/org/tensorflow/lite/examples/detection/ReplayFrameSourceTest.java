@@ -0,0 +1,159 @@
+/*
+ * Copyright 2020 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.SystemClock;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.tensorflow.lite.examples.detection.env.YuvFrameFile;
+import org.tensorflow.lite.examples.detection.env.YuvFrameRecorder;
+
+/** Tests the pacing and statistics of ReplayFrameSource. */
+@RunWith(AndroidJUnit4.class)
+public class ReplayFrameSourceTest {
+  private static final int FRAME_COUNT = 5;
+  private static final long FRAME_INTERVAL_MS = 100;
+  private static final long PROCESSING_MS = 5;
+  private static final long TIMEOUT_MS = 5000;
+
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Records the delivery of each frame and the final stats. Every other frame is turned down on
+   * its first offer, as if the previous one were still being processed, which ends PROCESSING_MS
+   * later.
+   */
+  private static final class RecordingListener implements ReplayFrameSource.Listener {
+    final List<Long> sequences = new ArrayList<>();
+    final List<Long> deliveryNs = new ArrayList<>();
+    final List<Long> taken = new ArrayList<>();
+    final Set<Long> turnedDown = new HashSet<>();
+    final CountDownLatch finished = new CountDownLatch(1);
+    volatile ReplayFrameSource source;
+    volatile ReplayFrameSource.Stats stats;
+
+    @Override
+    public boolean onFrame(final YuvFrameFile.Frame frame) {
+      deliveryNs.add(SystemClock.elapsedRealtimeNanos());
+      sequences.add(frame.sequence);
+      if (frame.sequence % 2 == 0 && turnedDown.add(frame.sequence)) {
+        new Thread(
+                () -> {
+                  SystemClock.sleep(PROCESSING_MS);
+                  source.signalReady();
+                })
+            .start();
+        return false;
+      }
+      taken.add(frame.sequence);
+      SystemClock.sleep(PROCESSING_MS);
+      return true;
+    }
+
+    @Override
+    public void onReplayFinished(final ReplayFrameSource.Stats stats) {
+      this.stats = stats;
+      finished.countDown();
+    }
+  }
+
+  @Test
+  public void recordedRateShouldFollowTimestamps() throws Exception {
+    final RecordingListener listener = replay(false);
+
+    // Turned down frames are dropped.
+    assertThat(listener.sequences).containsExactly(1L, 2L, 3L, 4L, 5L).inOrder();
+    assertThat(listener.taken).containsExactly(1L, 3L, 5L).inOrder();
+    final long firstNs = listener.deliveryNs.get(0);
+    for (int i = 1; i < FRAME_COUNT; ++i) {
+      final long offsetMs = (listener.deliveryNs.get(i) - firstNs) / 1000000;
+      assertThat(offsetMs).isAtLeast(i * FRAME_INTERVAL_MS - 1);
+    }
+    assertThat(listener.stats.elapsedNs / 1000000).isAtLeast((FRAME_COUNT - 1) * FRAME_INTERVAL_MS);
+    assertThat(listener.stats.framesDelivered).isEqualTo(3);
+    assertThat(listener.stats.framesDropped).isEqualTo(2);
+    assertProcessingTime(listener.stats);
+  }
+
+  @Test
+  public void maxRateShouldIgnoreTimestamps() throws Exception {
+    final RecordingListener listener = replay(true);
+
+    // Turned down frames are offered again once the listener signals that it is ready.
+    assertThat(listener.sequences).containsExactly(1L, 2L, 2L, 3L, 4L, 4L, 5L).inOrder();
+    assertThat(listener.taken).containsExactly(1L, 2L, 3L, 4L, 5L).inOrder();
+    // Only the processing time separates the frames, far less than their recorded interval.
+    assertThat(listener.stats.elapsedNs / 1000000).isLessThan(FRAME_INTERVAL_MS);
+    assertThat(listener.stats.framesDelivered).isEqualTo(FRAME_COUNT);
+    assertThat(listener.stats.framesDropped).isEqualTo(0);
+    assertProcessingTime(listener.stats);
+  }
+
+  private static void assertProcessingTime(final ReplayFrameSource.Stats stats) {
+    // Only taken frames count towards the processing time.
+    assertThat(stats.frameProcessingNs / 1000000)
+        .isAtLeast(stats.framesDelivered * PROCESSING_MS);
+    assertThat(stats.frameProcessingNs).isAtMost(stats.elapsedNs);
+  }
+
+  private RecordingListener replay(final boolean maxRate) throws Exception {
+    final RecordingListener listener = new RecordingListener();
+    final ReplayFrameSource source = new ReplayFrameSource(recordFrames(), maxRate, listener);
+    listener.source = source;
+    source.start();
+    assertThat(listener.finished.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)).isTrue();
+    source.stop();
+    return listener;
+  }
+
+  /** Records FRAME_COUNT blank frames, FRAME_INTERVAL_MS apart, and reads them back. */
+  private List<YuvFrameFile.Frame> recordFrames() throws IOException, InterruptedException {
+    final File file = new File(folder.getRoot(), "frames.yuv");
+    final YuvFrameRecorder recorder = new YuvFrameRecorder(file, FRAME_COUNT);
+    final ByteBuffer yPlane = ByteBuffer.allocate(16 * 8);
+    final ByteBuffer uvPlane = ByteBuffer.allocate(16 * 4 - 1);
+    final long deadlineMs = SystemClock.uptimeMillis() + TIMEOUT_MS;
+    for (int i = 0; i < FRAME_COUNT; ++i) {
+      // Frames are skipped until the file is mapped, and while the recorder is behind.
+      while (!recorder.record(
+          yPlane, uvPlane, uvPlane, 16, 8, 0, 16, 16, 2, i * FRAME_INTERVAL_MS * 1000000)) {
+        assertThat(SystemClock.uptimeMillis()).isLessThan(deadlineMs);
+        Thread.sleep(1);
+      }
+      while (recorder.getRecordedCount() < i + 1) {
+        assertThat(SystemClock.uptimeMillis()).isLessThan(deadlineMs);
+        Thread.sleep(1);
+      }
+    }
+    recorder.close();
+    return YuvFrameFile.read(file);
+  }
+}
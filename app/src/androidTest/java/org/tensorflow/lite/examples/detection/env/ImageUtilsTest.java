@@ -0,0 +1,503 @@
+/*
+ * Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection.env;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Checks the YUV converters against the per-pixel reference kernel. */
+@RunWith(AndroidJUnit4.class)
+public class ImageUtilsTest {
+  private static final String TAG = "ImageUtilsTest";
+
+  private static final int WIDTH = 640;
+  private static final int HEIGHT = 480;
+  private static final int CROP_SIZE = 300;
+  private static final int BENCHMARK_ITERATIONS = 50;
+
+  @Test
+  public void semiPlanarConversionShouldMatchReferenceForAllSamples() {
+    // One 256x2 NV21 frame per (u, v) pair covers every luma value against every chroma pair.
+    final byte[] input = new byte[256 * 2 + 256];
+    final int[] output = new int[256 * 2];
+    for (int i = 0; i < 256; ++i) {
+      input[i] = (byte) i;
+      input[256 + i] = (byte) i;
+    }
+    int mismatches = 0;
+    for (int u = 0; u < 256; ++u) {
+      for (int v = 0; v < 256; ++v) {
+        for (int i = 0; i < 256; i += 2) {
+          input[512 + i] = (byte) v;
+          input[512 + i + 1] = (byte) u;
+        }
+        ImageUtils.convertYUV420SPToARGB8888(input, 256, 2, output);
+        for (int i = 0; i < output.length; ++i) {
+          if (output[i] != ImageUtils.YUV2RGB(i & 0xff, u, v)) {
+            ++mismatches;
+          }
+        }
+      }
+    }
+    assertThat(mismatches).isEqualTo(0);
+  }
+
+  @Test
+  public void planarConversionShouldMatchReference() {
+    final Random random = new Random(0);
+    // Odd dimensions and padded strides exercise the edge handling of the paired loops.
+    final int width = WIDTH + 1;
+    final int height = HEIGHT + 1;
+    final int yRowStride = width + 15;
+    for (int uvPixelStride = 1; uvPixelStride <= 2; ++uvPixelStride) {
+      final int uvRowStride = (width + 1) / 2 * uvPixelStride + 7;
+      final byte[] yData = new byte[yRowStride * height];
+      final byte[] uData = new byte[uvRowStride * (height + 1) / 2];
+      final byte[] vData = new byte[uData.length];
+      random.nextBytes(yData);
+      random.nextBytes(uData);
+      random.nextBytes(vData);
+
+      final int[] output = new int[width * height];
+      ImageUtils.convertYUV420ToARGB8888(
+          yData, uData, vData, width, height, yRowStride, uvRowStride, uvPixelStride, output);
+      for (int j = 0; j < height; ++j) {
+        for (int i = 0; i < width; ++i) {
+          final int uvOffset = uvRowStride * (j >> 1) + (i >> 1) * uvPixelStride;
+          assertThat(output[j * width + i])
+              .isEqualTo(
+                  ImageUtils.YUV2RGB(
+                      0xff & yData[j * yRowStride + i],
+                      0xff & uData[uvOffset],
+                      0xff & vData[uvOffset]));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void layoutConversionShouldMatchReference() {
+    final Random random = new Random(0);
+    // An odd width and row strides wider than the rows.
+    final int width = WIDTH + 1;
+    final int height = 33;
+    final int yRowStride = width + 13;
+    final byte[] yData = new byte[yRowStride * height];
+    random.nextBytes(yData);
+    final int[] output = new int[width * height];
+
+    // PLANAR, SEMI_PLANAR in NV12 (U first) and NV21 (V first) order, and GENERIC.
+    final int[] pixelStrides = {1, 2, 2, 3};
+    final int[] vOffsets = {0, 1, 0, 1};
+    final int[] uOffsets = {0, 0, 1, 0};
+    for (int c = 0; c < pixelStrides.length; ++c) {
+      final int uvPixelStride = pixelStrides[c];
+      final int uvRowStride = (width + 1) / 2 * uvPixelStride + 9;
+      final byte[] uData = new byte[uvRowStride * (height + 1) / 2 + 1];
+      random.nextBytes(uData);
+      // Interleaved chroma shares one array, as in the plane buffers of a Camera2 image.
+      final byte[] vData = uvPixelStride == 1 ? new byte[uData.length] : uData;
+      random.nextBytes(vData);
+      final ByteBuffer uPlane = ByteBuffer.wrap(uData, uOffsets[c], uData.length - 1).slice();
+      final ByteBuffer vPlane = ByteBuffer.wrap(vData, vOffsets[c], vData.length - 1).slice();
+
+      final ImageUtils.YuvLayout layout = ImageUtils.YuvLayout.fromPixelStride(uvPixelStride);
+      assertThat(layout)
+          .isEqualTo(
+              uvPixelStride == 1
+                  ? ImageUtils.YuvLayout.PLANAR
+                  : uvPixelStride == 2
+                      ? ImageUtils.YuvLayout.SEMI_PLANAR
+                      : ImageUtils.YuvLayout.GENERIC);
+      ImageUtils.convertYUV420ToARGB8888(
+          ByteBuffer.wrap(yData),
+          uPlane,
+          vPlane,
+          width,
+          height,
+          yRowStride,
+          uvRowStride,
+          uvPixelStride,
+          layout,
+          output);
+      for (int j = 0; j < height; ++j) {
+        for (int i = 0; i < width; ++i) {
+          final int uvOffset = uvRowStride * (j >> 1) + (i >> 1) * uvPixelStride;
+          assertThat(output[j * width + i])
+              .isEqualTo(
+                  ImageUtils.YUV2RGB(
+                      0xff & yData[j * yRowStride + i],
+                      0xff & uPlane.get(uvOffset),
+                      0xff & vPlane.get(uvOffset)));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void regionConversionShouldOnlyWriteRegion() {
+    final Random random = new Random(0);
+    final byte[] input = new byte[WIDTH * HEIGHT * 3 / 2];
+    random.nextBytes(input);
+    final int[] expected = new int[WIDTH * HEIGHT];
+    ImageUtils.convertYUV420SPToARGB8888(input, WIDTH, HEIGHT, expected);
+
+    // An odd left edge is widened by one column to keep chroma pairs together.
+    final Rect roi = new Rect(81, 33, 559, 447);
+    final int[] output = new int[WIDTH * HEIGHT];
+    ImageUtils.convertYUV420SPToARGB8888(input, WIDTH, HEIGHT, roi, output);
+    for (int j = 0; j < HEIGHT; ++j) {
+      for (int i = 0; i < WIDTH; ++i) {
+        final boolean inside = i >= 80 && i < roi.right && j >= roi.top && j < roi.bottom;
+        assertThat(output[j * WIDTH + i]).isEqualTo(inside ? expected[j * WIDTH + i] : 0);
+      }
+    }
+  }
+
+  @Test
+  public void bandedConversionShouldMatchSerial() {
+    final Random random = new Random(0);
+    // Odd heights, with band counts that leave the last band shorter than the others.
+    for (final int numThreads : new int[] {2, 3, 4}) {
+      final ParallelImageConverter converter = new ParallelImageConverter(numThreads);
+      for (final int height : new int[] {129, 201, 479}) {
+        final int[] expected = new int[WIDTH * height];
+        final int[] output = new int[WIDTH * height];
+        final byte[] nv21 = new byte[WIDTH * height + WIDTH * ((height + 1) / 2)];
+        random.nextBytes(nv21);
+        ImageUtils.convertYUV420SPToARGB8888(nv21, WIDTH, height, expected);
+        converter.convertYUV420SPToARGB8888(nv21, WIDTH, height, output);
+        assertThat(output).isEqualTo(expected);
+
+        // A region starting on an odd row, so the first band holds an odd number of rows.
+        final Rect roi = new Rect(2, 1, WIDTH - 2, height);
+        Arrays.fill(expected, 0);
+        Arrays.fill(output, 0);
+        ImageUtils.convertYUV420SPToARGB8888(nv21, WIDTH, height, roi, expected);
+        converter.convertYUV420SPToARGB8888(nv21, WIDTH, height, roi, output);
+        assertThat(output).isEqualTo(expected);
+
+        final int yRowStride = WIDTH + 16;
+        final int uvRowStride = WIDTH + 8;
+        final byte[] yData = new byte[yRowStride * height];
+        final byte[] vuData = new byte[uvRowStride * ((height + 1) / 2)];
+        random.nextBytes(yData);
+        random.nextBytes(vuData);
+        ImageUtils.convertYUV420ToARGB8888(
+            yData, vuData, vuData, WIDTH, height, yRowStride, uvRowStride, 2, expected);
+        converter.convertYUV420ToARGB8888(
+            yData, vuData, vuData, WIDTH, height, yRowStride, uvRowStride, 2, output);
+        assertThat(output).isEqualTo(expected);
+
+        final ByteBuffer yPlane = ByteBuffer.wrap(yData);
+        final ByteBuffer vPlane = ByteBuffer.wrap(vuData).slice();
+        final ByteBuffer uPlane = ByteBuffer.wrap(vuData, 1, vuData.length - 1).slice();
+        ImageUtils.convertYUV420ToARGB8888(
+            yPlane,
+            uPlane,
+            vPlane,
+            WIDTH,
+            height,
+            yRowStride,
+            uvRowStride,
+            2,
+            ImageUtils.YuvLayout.SEMI_PLANAR,
+            roi,
+            expected);
+        converter.convertYUV420ToARGB8888(
+            yPlane,
+            uPlane,
+            vPlane,
+            WIDTH,
+            height,
+            yRowStride,
+            uvRowStride,
+            2,
+            ImageUtils.YuvLayout.SEMI_PLANAR,
+            roi,
+            output);
+        assertThat(output).isEqualTo(expected);
+      }
+      converter.close();
+    }
+  }
+
+  @Test
+  public void failedCallerBandShouldWaitForWorkerBands() {
+    final ParallelImageConverter converter = new ParallelImageConverter(3);
+    final AtomicInteger finishedBands = new AtomicInteger();
+    try {
+      converter.runInBands(
+          0,
+          HEIGHT,
+          (rowStart, rowEnd) -> {
+            // The caller converts the first band itself.
+            if (rowStart == 0) {
+              throw new IllegalStateException("caller band failed");
+            }
+            SystemClock.sleep(50);
+            finishedBands.incrementAndGet();
+          });
+      fail("Expected the caller's band to fail");
+    } catch (final IllegalStateException e) {
+      assertThat(e.getMessage()).isEqualTo("caller band failed");
+      // 3 bands of 160 rows, two of them on the workers.
+      assertThat(finishedBands.get()).isEqualTo(2);
+    }
+    converter.close();
+  }
+
+  @Test
+  public void fusedConversionShouldMatchConvertAndDraw() {
+    final Random random = new Random(0);
+    final int yRowStride = WIDTH + 16;
+    final byte[] yData = new byte[yRowStride * HEIGHT];
+    random.nextBytes(yData);
+    final Bitmap frame = Bitmap.createBitmap(WIDTH, HEIGHT, Config.ARGB_8888);
+    final Bitmap cropped = Bitmap.createBitmap(CROP_SIZE, CROP_SIZE, Config.ARGB_8888);
+    final int[] argb = new int[WIDTH * HEIGHT];
+    final int[] expected = new int[CROP_SIZE * CROP_SIZE];
+    final ByteBuffer rgb = ByteBuffer.allocateDirect(CROP_SIZE * CROP_SIZE * 3);
+    final float[] cropToFrameValues = new float[9];
+
+    for (int uvPixelStride = 1; uvPixelStride <= 2; ++uvPixelStride) {
+      final int uvRowStride = WIDTH / 2 * uvPixelStride + 8;
+      final ByteBuffer uPlane;
+      final ByteBuffer vPlane;
+      if (uvPixelStride == 1) {
+        final byte[] uData = new byte[uvRowStride * HEIGHT / 2];
+        final byte[] vData = new byte[uData.length];
+        random.nextBytes(uData);
+        random.nextBytes(vData);
+        uPlane = ByteBuffer.wrap(uData);
+        vPlane = ByteBuffer.wrap(vData);
+      } else {
+        // Interleaved V and U, as in NV21, read through two slices of one array.
+        final byte[] vuData = new byte[uvRowStride * HEIGHT / 2 + 1];
+        random.nextBytes(vuData);
+        vPlane = ByteBuffer.wrap(vuData).slice();
+        uPlane = ByteBuffer.wrap(vuData, 1, vuData.length - 1).slice();
+      }
+      ImageUtils.convertYUV420ToARGB8888(
+          ByteBuffer.wrap(yData),
+          uPlane,
+          vPlane,
+          WIDTH,
+          HEIGHT,
+          yRowStride,
+          uvRowStride,
+          uvPixelStride,
+          ImageUtils.YuvLayout.fromPixelStride(uvPixelStride),
+          argb);
+      frame.setPixels(argb, 0, WIDTH, 0, 0, WIDTH, HEIGHT);
+
+      for (final int rotation : new int[] {0, 90, 270}) {
+        final Matrix frameToCrop =
+            ImageUtils.getTransformationMatrix(
+                WIDTH, HEIGHT, CROP_SIZE, CROP_SIZE, rotation, false);
+        final Matrix cropToFrame = new Matrix();
+        frameToCrop.invert(cropToFrame);
+        new Canvas(cropped).drawBitmap(frame, frameToCrop, null);
+        cropped.getPixels(expected, 0, CROP_SIZE, 0, 0, CROP_SIZE, CROP_SIZE);
+
+        cropToFrame.getValues(cropToFrameValues);
+        ImageUtils.convertYUV420ToRGB888(
+            ByteBuffer.wrap(yData),
+            uPlane,
+            vPlane,
+            WIDTH,
+            HEIGHT,
+            yRowStride,
+            uvRowStride,
+            uvPixelStride,
+            cropToFrameValues,
+            CROP_SIZE,
+            CROP_SIZE,
+            rgb);
+
+        int compared = 0;
+        final float[] center = new float[2];
+        for (int j = 0; j < CROP_SIZE; ++j) {
+          for (int i = 0; i < CROP_SIZE; ++i) {
+            center[0] = i + 0.5f;
+            center[1] = j + 0.5f;
+            cropToFrame.mapPoints(center);
+            // Centers that land on a frame pixel edge may round either way.
+            if (isNearEdge(center[0]) || isNearEdge(center[1])) {
+              continue;
+            }
+            final int p = (j * CROP_SIZE + i) * 3;
+            final int actual =
+                0xff000000
+                    | (0xff & rgb.get(p)) << 16
+                    | (0xff & rgb.get(p + 1)) << 8
+                    | (0xff & rgb.get(p + 2));
+            assertThat(actual).isEqualTo(expected[j * CROP_SIZE + i]);
+            ++compared;
+          }
+        }
+        assertThat(compared).isGreaterThan(CROP_SIZE * CROP_SIZE * 2 / 3);
+      }
+    }
+  }
+
+  @Test
+  public void decimatedConversionShouldAverageBlocks() {
+    final Random random = new Random(0);
+    final int yRowStride = WIDTH + 16;
+    final byte[] yData = new byte[yRowStride * HEIGHT];
+    random.nextBytes(yData);
+
+    // Planar, NV21 and a wider pixel stride, each with padded rows.
+    final int[] pixelStrides = {1, 2, 3};
+    final int[] vOffsets = {0, 0, 1};
+    final int[] uOffsets = {0, 1, 0};
+    for (int layoutIndex = 0; layoutIndex < pixelStrides.length; ++layoutIndex) {
+      final int uvPixelStride = pixelStrides[layoutIndex];
+      final int uvRowStride = WIDTH / 2 * uvPixelStride + 8;
+      final byte[] uData = new byte[uvRowStride * HEIGHT / 2];
+      final byte[] vData = uvPixelStride == 1 ? new byte[uData.length] : uData;
+      random.nextBytes(uData);
+      random.nextBytes(vData);
+      final int uOffset = uOffsets[layoutIndex];
+      final int vOffset = vOffsets[layoutIndex];
+      final ByteBuffer yPlane = ByteBuffer.wrap(yData);
+      final ByteBuffer uPlane = ByteBuffer.wrap(uData, uOffset, uData.length - uOffset).slice();
+      final ByteBuffer vPlane = ByteBuffer.wrap(vData, vOffset, vData.length - vOffset).slice();
+
+      for (int factor = 2; factor <= 4; factor += 2) {
+        final int outWidth = WIDTH / factor;
+        final int[] output = new int[outWidth * (HEIGHT / factor)];
+        ImageUtils.convertYUV420ToARGB8888Decimated(
+            yPlane,
+            uPlane,
+            vPlane,
+            WIDTH,
+            HEIGHT,
+            yRowStride,
+            uvRowStride,
+            uvPixelStride,
+            factor,
+            output);
+        for (int j = 0; j < HEIGHT / factor; ++j) {
+          for (int i = 0; i < outWidth; ++i) {
+            final int y = average(yData, 0, i * factor, j * factor, factor, yRowStride, 1);
+            final int u =
+                average(
+                    uData,
+                    uOffset,
+                    i * factor / 2,
+                    j * factor / 2,
+                    factor / 2,
+                    uvRowStride,
+                    uvPixelStride);
+            final int v =
+                average(
+                    vData,
+                    vOffset,
+                    i * factor / 2,
+                    j * factor / 2,
+                    factor / 2,
+                    uvRowStride,
+                    uvPixelStride);
+            assertThat(output[j * outWidth + i]).isEqualTo(ImageUtils.YUV2RGB(y, u, v));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Logs the speedup of the table-driven converter over YUV2RGB. Device timings are too noisy to
+   * assert on, so the bit-exactness tests above are what guard the converter.
+   */
+  @Test
+  public void benchmarkConversion() {
+    final Random random = new Random(0);
+    final byte[] yData = new byte[WIDTH * HEIGHT];
+    final byte[] uvData = new byte[WIDTH * HEIGHT / 2];
+    random.nextBytes(yData);
+    random.nextBytes(uvData);
+    final int[] output = new int[WIDTH * HEIGHT];
+
+    // Warm up both paths before timing them.
+    convertWithReference(yData, uvData, output);
+    ImageUtils.convertYUV420ToARGB8888(
+        yData, uvData, uvData, WIDTH, HEIGHT, WIDTH, WIDTH, 2, output);
+
+    // The fastest run of each is the least disturbed by other work on the device.
+    long referenceNs = Long.MAX_VALUE;
+    long tableNs = Long.MAX_VALUE;
+    for (int i = 0; i < BENCHMARK_ITERATIONS; ++i) {
+      long startTime = SystemClock.elapsedRealtimeNanos();
+      convertWithReference(yData, uvData, output);
+      referenceNs = Math.min(referenceNs, SystemClock.elapsedRealtimeNanos() - startTime);
+
+      startTime = SystemClock.elapsedRealtimeNanos();
+      ImageUtils.convertYUV420ToARGB8888(
+          yData, uvData, uvData, WIDTH, HEIGHT, WIDTH, WIDTH, 2, output);
+      tableNs = Math.min(tableNs, SystemClock.elapsedRealtimeNanos() - startTime);
+    }
+
+    Log.i(
+        TAG,
+        String.format(
+            "%dx%d conversion: reference %.2f ms, table-driven %.2f ms (%.1fx)",
+            WIDTH, HEIGHT, referenceNs / 1e6, tableNs / 1e6, referenceNs / (double) tableNs));
+  }
+
+  private static int average(
+      byte[] data, int offset, int x, int y, int size, int rowStride, int pixelStride) {
+    int sum = 0;
+    for (int j = y; j < y + size; ++j) {
+      for (int i = x; i < x + size; ++i) {
+        sum += 0xff & data[offset + j * rowStride + i * pixelStride];
+      }
+    }
+    return (sum + size * size / 2) / (size * size);
+  }
+
+  private static boolean isNearEdge(final float position) {
+    return Math.abs(position - Math.round(position)) < 1e-3f;
+  }
+
+  private static void convertWithReference(byte[] yData, byte[] uvData, int[] output) {
+    for (int j = 0, yp = 0; j < HEIGHT; ++j) {
+      final int pUV = WIDTH * (j >> 1);
+      for (int i = 0; i < WIDTH; ++i, ++yp) {
+        final int uvOffset = pUV + (i >> 1) * 2;
+        output[yp] =
+            ImageUtils.YUV2RGB(0xff & yData[yp], 0xff & uvData[uvOffset], 0xff & uvData[uvOffset]);
+      }
+    }
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection.env;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+/** Records frames with YuvFrameRecorder and reads them back with YuvFrameFile. */
+@RunWith(AndroidJUnit4.class)
+public class YuvFrameRecorderTest {
+  private static final int WIDTH = 64;
+  private static final int HEIGHT = 48;
+  // Padded rows, as cameras deliver them.
+  private static final int Y_ROW_STRIDE = 80;
+  private static final int UV_ROW_STRIDE = 80;
+  private static final int UV_PIXEL_STRIDE = 2;
+  private static final int ROTATION = 90;
+  private static final long FIRST_TIMESTAMP_NS = 123456789000L;
+  private static final long FRAME_INTERVAL_NS = 33333333L;
+  private static final int SLOT_COUNT = 4;
+  private static final long TIMEOUT_MS = 5000;
+
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+  private final Random random = new Random(0);
+
+  @Test
+  public void framesPastCapacityShouldKeepTheNewest() throws IOException, InterruptedException {
+    final int frameCount = 2 * SLOT_COUNT + 1;
+    final byte[][][] planes = recordFrames(frameCount);
+
+    final List<YuvFrameFile.Frame> frames = YuvFrameFile.read(getFile());
+    assertThat(frames).hasSize(SLOT_COUNT);
+    for (int i = 0; i < SLOT_COUNT; ++i) {
+      assertFrame(frames.get(i), frameCount - SLOT_COUNT + i, planes);
+    }
+  }
+
+  @Test
+  public void framesWithinCapacityShouldSkipEmptySlots() throws IOException, InterruptedException {
+    final int frameCount = SLOT_COUNT - 1;
+    final byte[][][] planes = recordFrames(frameCount);
+
+    final List<YuvFrameFile.Frame> frames = YuvFrameFile.read(getFile());
+    assertThat(frames).hasSize(frameCount);
+    for (int i = 0; i < frameCount; ++i) {
+      assertFrame(frames.get(i), i, planes);
+    }
+  }
+
+  private File getFile() {
+    return new File(folder.getRoot(), "frames.yuv");
+  }
+
+  /** Records frameCount random frames, one at a time, and returns their Y, U and V planes. */
+  private byte[][][] recordFrames(final int frameCount) throws InterruptedException {
+    final YuvFrameRecorder recorder = new YuvFrameRecorder(getFile(), SLOT_COUNT);
+    final byte[][][] planes = new byte[frameCount][][];
+    for (int i = 0; i < frameCount; ++i) {
+      // The last row of a semi-planar chroma plane ends at its last sample.
+      final int uvLength = UV_ROW_STRIDE * (HEIGHT / 2 - 1) + WIDTH - 1;
+      planes[i] =
+          new byte[][] {new byte[Y_ROW_STRIDE * HEIGHT], new byte[uvLength], new byte[uvLength]};
+      for (final byte[] plane : planes[i]) {
+        random.nextBytes(plane);
+      }
+
+      // Frames are skipped until the file is mapped, and while the recorder is behind.
+      final long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+      while (!recorder.record(
+          ByteBuffer.wrap(planes[i][0]),
+          ByteBuffer.wrap(planes[i][1]),
+          ByteBuffer.wrap(planes[i][2]),
+          WIDTH,
+          HEIGHT,
+          ROTATION,
+          Y_ROW_STRIDE,
+          UV_ROW_STRIDE,
+          UV_PIXEL_STRIDE,
+          FIRST_TIMESTAMP_NS + i * FRAME_INTERVAL_NS)) {
+        assertThat(System.currentTimeMillis()).isLessThan(deadlineMs);
+        Thread.sleep(1);
+      }
+      while (recorder.getRecordedCount() < i + 1) {
+        assertThat(System.currentTimeMillis()).isLessThan(deadlineMs);
+        Thread.sleep(1);
+      }
+    }
+    recorder.close();
+    return planes;
+  }
+
+  private static void assertFrame(
+      final YuvFrameFile.Frame frame, final int index, final byte[][][] planes) {
+    assertThat(frame.sequence).isEqualTo(index + 1L);
+    assertThat(frame.timestampNs).isEqualTo(FIRST_TIMESTAMP_NS + index * FRAME_INTERVAL_NS);
+    assertThat(frame.width).isEqualTo(WIDTH);
+    assertThat(frame.height).isEqualTo(HEIGHT);
+    assertThat(frame.rotation).isEqualTo(ROTATION);
+    assertThat(frame.yRowStride).isEqualTo(Y_ROW_STRIDE);
+    assertThat(frame.uvRowStride).isEqualTo(UV_ROW_STRIDE);
+    assertThat(frame.uvPixelStride).isEqualTo(UV_PIXEL_STRIDE);
+    assertThat(toArray(frame.yPlane)).isEqualTo(planes[index][0]);
+    assertThat(toArray(frame.uPlane)).isEqualTo(planes[index][1]);
+    assertThat(toArray(frame.vPlane)).isEqualTo(planes[index][2]);
+  }
+
+  private static byte[] toArray(final ByteBuffer buffer) {
+    final byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return bytes;
+  }
+}
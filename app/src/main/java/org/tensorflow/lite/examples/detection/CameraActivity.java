@@ -18,8 +18,13 @@ package org.tensorflow.lite.examples.detection;
 
 import android.Manifest;
 import android.app.Fragment;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
+import android.graphics.Matrix;
+import android.graphics.Rect;
 import android.hardware.Camera;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCharacteristics;
@@ -29,10 +34,12 @@ import android.media.Image;
 import android.media.Image.Plane;
 import android.media.ImageReader;
 import android.media.ImageReader.OnImageAvailableListener;
+import android.os.BatteryManager;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.os.Trace;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.SwitchCompat;
@@ -40,6 +47,7 @@ import androidx.appcompat.widget.Toolbar;
 import android.util.Size;
 import android.view.Surface;
 import android.view.View;
+import android.view.ViewGroup;
 import android.view.ViewTreeObserver;
 import android.view.WindowManager;
 import android.widget.CompoundButton;
@@ -49,9 +57,19 @@ import android.widget.TextView;
 import android.widget.Toast;
 import androidx.annotation.NonNull;
 import com.google.android.material.bottomsheet.BottomSheetBehavior;
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.tensorflow.lite.examples.detection.env.CpuTopology;
 import org.tensorflow.lite.examples.detection.env.ImageUtils;
 import org.tensorflow.lite.examples.detection.env.Logger;
+import org.tensorflow.lite.examples.detection.env.ParallelImageConverter;
+import org.tensorflow.lite.examples.detection.env.YuvFrameFile;
+import org.tensorflow.lite.examples.detection.env.YuvFrameRecorder;
 
 public abstract class CameraActivity extends AppCompatActivity
     implements OnImageAvailableListener,
@@ -60,27 +78,102 @@ public abstract class CameraActivity extends AppCompatActivity
         View.OnClickListener {
   private static final Logger LOGGER = new Logger();
 
+  /**
+   * Path of a {@link YuvFrameFile} to replay in place of the camera, for benchmarking on recorded
+   * input, e.g. {@code adb shell am start -n <package>/.DetectorActivity --es replay_file <path>}.
+   */
+  public static final String EXTRA_REPLAY_FILE = "replay_file";
+  /** Whether to replay frames back to back rather than at their recorded rate. */
+  public static final String EXTRA_REPLAY_MAX_RATE = "replay_max_rate";
+  /**
+   * Path of a {@link YuvFrameFile} to record the raw processed frames into, as a ring of the last
+   * {@link #EXTRA_RECORD_FRAMES} frames, for replaying them later with {@link #EXTRA_REPLAY_FILE}.
+   */
+  public static final String EXTRA_RECORD_FILE = "record_file";
+  /** Number of frames kept by a recording, 300 by default. */
+  public static final String EXTRA_RECORD_FRAMES = "record_frames";
+  /**
+   * Whether to alternate capture between short bursts and idle gaps, to save power on long
+   * sessions.
+   */
+  public static final String EXTRA_DUTY_CYCLE = "duty_cycle";
+
+  private static final int DEFAULT_RECORD_FRAMES = 300;
+  // Frame timestamps further in the past than this are taken to be in another time base.
+  private static final long MAX_FRAME_AGE_NS = 1000000000L;
+
   private static final int PERMISSIONS_REQUEST = 1;
 
   private static final String PERMISSION_CAMERA = Manifest.permission.CAMERA;
+
+  // Splits YUV conversion of each frame across this many threads, at most one per big core. Set to
+  // 1 to convert on the camera thread only.
+  private static final int MAX_CONVERSION_THREADS = 4;
+  // Preview buffers the legacy camera API can fill while earlier frames are still being processed.
+  private static final int NUM_PREVIEW_CALLBACK_BUFFERS = 3;
   protected int previewWidth = 0;
   protected int previewHeight = 0;
   private boolean debug = false;
   private Handler handler;
   private HandlerThread handlerThread;
   private boolean useCamera2API;
-  private boolean isProcessingFrame = false;
+  // Set from a frame callback until readyForNextImage() releases the frame, which subclasses may do
+  // from another thread.
+  private final AtomicBoolean isProcessingFrame = new AtomicBoolean(false);
   private byte[][] yuvBytes = new byte[3][];
   private int[] rgbBytes = null;
   private int yRowStride;
+  // The current frame as plane buffers, for converting it straight into the model input.
+  private final ByteBuffer[] yuvPlanes = new ByteBuffer[3];
+  private int uvRowStride;
+  private int uvPixelStride;
+  private ImageUtils.YuvLayout yuvLayout;
+  // Values of the transform passed to fillModelInput(), kept to avoid allocating them per frame.
+  private final float[] modelInputTransformValues = new float[9];
+  // Factor by which getRgbBytes() downscales the frame while converting it.
+  private int rgbDecimation = 1;
+  // Part of the frame that getRgbBytes() converts, or null for all of it.
+  private Rect rgbRegion;
+  // Set for each frame by the camera callback, and only used by processImage() and
+  // readyForNextImage() while that frame is being processed.
   private Runnable postInferenceCallback;
   private Runnable imageConverter;
+  private ParallelImageConverter parallelImageConverter;
+  private CpuTopology cpuTopology;
+  private final PreviewCallbackBufferRing previewCallbackBuffers =
+      new PreviewCallbackBufferRing(NUM_PREVIEW_CALLBACK_BUFFERS);
+  private ReplayFrameSource replayFrameSource;
+  private PreviewSizeSelector previewSizeSelector;
+  private final FrameRateGovernor frameRateGovernor = new FrameRateGovernor();
+  private DutyCycleController dutyCycleController;
+  // Feeds battery changes to dutyCycleController while resumed.
+  private final BroadcastReceiver batteryReceiver =
+      new BroadcastReceiver() {
+        @Override
+        public void onReceive(final Context context, final Intent intent) {
+          final int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+          final int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+          final int status = intent.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+          if (level >= 0 && scale > 0) {
+            dutyCycleController.setBatteryState(
+                level / (float) scale,
+                status == BatteryManager.BATTERY_STATUS_CHARGING
+                    || status == BatteryManager.BATTERY_STATUS_FULL);
+          }
+        }
+      };
+  // Set if EXTRA_RECORD_FILE is. The recorder allocates its file on its own thread.
+  private YuvFrameRecorder frameRecorder;
+  private int previewRotation;
+  // Capture time of the current frame in the SystemClock.elapsedRealtimeNanos() time base.
+  private long frameTimestampNs;
 
   private LinearLayout bottomSheetLayout;
   private LinearLayout gestureLayout;
   private BottomSheetBehavior<LinearLayout> sheetBehavior;
 
   protected TextView frameValueTextView, cropValueTextView, inferenceTimeTextView;
+  protected TextView latencyTextView;
   protected ImageView bottomSheetArrowImageView;
   private ImageView plusImageView, minusImageView;
   private SwitchCompat apiSwitchCompat;
@@ -93,12 +186,33 @@ public abstract class CameraActivity extends AppCompatActivity
     super.onCreate(null);
     getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
 
+    cpuTopology = CpuTopology.probe();
+    LOGGER.i("CPU topology: %s", cpuTopology);
+    // A band left to a LITTLE core would finish last and hold up the whole frame.
+    parallelImageConverter =
+        new ParallelImageConverter(
+            Math.min(MAX_CONVERSION_THREADS, cpuTopology.getBigCoreCount()));
+
     setContentView(R.layout.tfe_od_activity_camera);
     Toolbar toolbar = findViewById(R.id.toolbar);
     setSupportActionBar(toolbar);
     getSupportActionBar().setDisplayShowTitleEnabled(false);
 
-    if (hasPermission()) {
+    previewSizeSelector =
+        new PreviewSizeSelector(getModelInputSize(), getDesiredPreviewFrameSize());
+    final String recordFile = getIntent().getStringExtra(EXTRA_RECORD_FILE);
+    if (recordFile != null) {
+      frameRecorder =
+          new YuvFrameRecorder(
+              new File(recordFile),
+              getIntent().getIntExtra(EXTRA_RECORD_FRAMES, DEFAULT_RECORD_FRAMES));
+    }
+    dutyCycleController =
+        new DutyCycleController(getIntent().getBooleanExtra(EXTRA_DUTY_CYCLE, false));
+    final String replayFile = getIntent().getStringExtra(EXTRA_REPLAY_FILE);
+    if (replayFile != null) {
+      setUpReplay(replayFile);
+    } else if (hasPermission()) {
       setFragment();
     } else {
       requestPermission();
@@ -163,6 +277,7 @@ public abstract class CameraActivity extends AppCompatActivity
     frameValueTextView = findViewById(R.id.frame_info);
     cropValueTextView = findViewById(R.id.crop_info);
     inferenceTimeTextView = findViewById(R.id.inference_info);
+    latencyTextView = findViewById(R.id.latency_info);
 
     apiSwitchCompat.setOnCheckedChangeListener(this);
 
@@ -171,23 +286,108 @@ public abstract class CameraActivity extends AppCompatActivity
   }
 
   protected int[] getRgbBytes() {
-    imageConverter.run();
+    if (rgbDecimation > 1) {
+      ImageUtils.convertYUV420ToARGB8888Decimated(
+          yuvPlanes[0],
+          yuvPlanes[1],
+          yuvPlanes[2],
+          previewWidth,
+          previewHeight,
+          yRowStride,
+          uvRowStride,
+          uvPixelStride,
+          rgbDecimation,
+          rgbBytes);
+    } else {
+      imageConverter.run();
+    }
     return rgbBytes;
   }
 
+  /**
+   * Makes {@link #getRgbBytes()} return the frame box-filtered down by {@code factor} in each
+   * dimension, i.e. (previewWidth / factor) x (previewHeight / factor) pixels. A factor of 1
+   * restores full resolution conversion; other factors must be even.
+   */
+  protected void setRgbDecimation(final int factor) {
+    if (factor != 1 && (factor < 2 || (factor & 1) != 0)) {
+      throw new IllegalArgumentException("Decimation factor must be 1 or even, got " + factor);
+    }
+    LOGGER.i("Converting frames at 1/%d resolution", factor);
+    rgbDecimation = factor;
+  }
+
+  /**
+   * Makes {@link #getRgbBytes()} convert only the pixels inside {@code region}, in preview
+   * coordinates, leaving the rest of the array as it was. A null region converts the whole frame.
+   * Ignored while frames are decimated by {@link #setRgbDecimation(int)}.
+   */
+  protected void setRgbRegion(final Rect region) {
+    LOGGER.i("Converting frame region %s", region);
+    rgbRegion = region != null ? new Rect(region) : null;
+  }
+
   protected int getLuminanceStride() {
     return yRowStride;
   }
 
+  /**
+   * Returns when the current frame was captured, in the {@link SystemClock#elapsedRealtimeNanos()}
+   * time base, so that later stages can measure their latency from it.
+   */
+  protected long getFrameTimestampNs() {
+    return frameTimestampNs;
+  }
+
+  /**
+   * Returns the luma plane of the current frame. Camera2 planes are read in place rather than
+   * copied, so for them the plane is only copied out here, and this must be called before {@link
+   * #readyForNextImage()} releases the frame.
+   */
   protected byte[] getLuminance() {
+    if (useCamera2API) {
+      final ByteBuffer buffer = yuvPlanes[0].duplicate();
+      buffer.rewind();
+      if (yuvBytes[0] == null || yuvBytes[0].length != buffer.remaining()) {
+        yuvBytes[0] = new byte[buffer.remaining()];
+      }
+      buffer.get(yuvBytes[0]);
+    }
     return yuvBytes[0];
   }
 
+  /**
+   * Converts the current frame straight into a square, packed RGB888 model input, sampling the
+   * frame through {@code cropToFrameTransform}. This is a single pass replacement for {@link
+   * #getRgbBytes()} followed by drawing the frame into a cropped Bitmap.
+   */
+  protected void fillModelInput(
+      final Matrix cropToFrameTransform, final int cropSize, final ByteBuffer out) {
+    cropToFrameTransform.getValues(modelInputTransformValues);
+    ImageUtils.convertYUV420ToRGB888(
+        yuvPlanes[0],
+        yuvPlanes[1],
+        yuvPlanes[2],
+        previewWidth,
+        previewHeight,
+        yRowStride,
+        uvRowStride,
+        uvPixelStride,
+        modelInputTransformValues,
+        cropSize,
+        cropSize,
+        out);
+  }
+
   /** Callback for android.hardware.Camera API */
   @Override
   public void onPreviewFrame(final byte[] bytes, final Camera camera) {
-    if (isProcessingFrame) {
+    previewCallbackBuffers.onFrameDelivered(bytes);
+    frameRateGovernor.onFrameDelivered();
+    dutyCycleController.onFrameDelivered();
+    if (isProcessingFrame.get()) {
       LOGGER.w("Dropping frame!");
+      previewCallbackBuffers.release(bytes);
       return;
     }
 
@@ -198,22 +398,40 @@ public abstract class CameraActivity extends AppCompatActivity
         previewHeight = previewSize.height;
         previewWidth = previewSize.width;
         rgbBytes = new int[previewWidth * previewHeight];
-        onPreviewSizeChosen(new Size(previewSize.width, previewSize.height), 90);
+        previewRotation = 90;
+        onPreviewSizeChosen(new Size(previewSize.width, previewSize.height), previewRotation);
       }
     } catch (final Exception e) {
       LOGGER.e(e, "Exception!");
+      previewCallbackBuffers.release(bytes);
       return;
     }
 
-    isProcessingFrame = true;
+    isProcessingFrame.set(true);
     yuvBytes[0] = bytes;
     yRowStride = previewWidth;
 
+    // NV21 stores interleaved V and U samples after the luma plane.
+    final int frameSize = previewWidth * previewHeight;
+    yuvPlanes[0] = ByteBuffer.wrap(bytes, 0, frameSize).slice();
+    yuvPlanes[1] = ByteBuffer.wrap(bytes, frameSize + 1, bytes.length - frameSize - 1).slice();
+    yuvPlanes[2] = ByteBuffer.wrap(bytes, frameSize, bytes.length - frameSize).slice();
+    uvRowStride = previewWidth;
+    uvPixelStride = 2;
+    // Camera1 does not timestamp preview frames, so the arrival time is the closest there is.
+    frameTimestampNs = SystemClock.elapsedRealtimeNanos();
+    recordFrame(frameTimestampNs);
+
     imageConverter =
         new Runnable() {
           @Override
           public void run() {
-            ImageUtils.convertYUV420SPToARGB8888(bytes, previewWidth, previewHeight, rgbBytes);
+            parallelImageConverter.convertYUV420SPToARGB8888(
+                bytes,
+                previewWidth,
+                previewHeight,
+                rgbRegion != null ? rgbRegion : new Rect(0, 0, previewWidth, previewHeight),
+                rgbBytes);
           }
         };
 
@@ -221,8 +439,8 @@ public abstract class CameraActivity extends AppCompatActivity
         new Runnable() {
           @Override
           public void run() {
-            camera.addCallbackBuffer(bytes);
-            isProcessingFrame = false;
+            previewCallbackBuffers.release(bytes);
+            isProcessingFrame.set(false);
           }
         };
     processImage();
@@ -235,55 +453,30 @@ public abstract class CameraActivity extends AppCompatActivity
     if (previewWidth == 0 || previewHeight == 0) {
       return;
     }
-    if (rgbBytes == null) {
-      rgbBytes = new int[previewWidth * previewHeight];
-    }
     try {
       final Image image = reader.acquireLatestImage();
 
       if (image == null) {
         return;
       }
+      frameRateGovernor.onFrameDelivered();
+      dutyCycleController.onFrameDelivered();
 
-      if (isProcessingFrame) {
-        image.close();
-        return;
-      }
-      isProcessingFrame = true;
       Trace.beginSection("imageAvailable");
       final Plane[] planes = image.getPlanes();
-      fillBytes(planes, yuvBytes);
-      yRowStride = planes[0].getRowStride();
-      final int uvRowStride = planes[1].getRowStride();
-      final int uvPixelStride = planes[1].getPixelStride();
-
-      imageConverter =
-          new Runnable() {
-            @Override
-            public void run() {
-              ImageUtils.convertYUV420ToARGB8888(
-                  yuvBytes[0],
-                  yuvBytes[1],
-                  yuvBytes[2],
-                  previewWidth,
-                  previewHeight,
-                  yRowStride,
-                  uvRowStride,
-                  uvPixelStride,
-                  rgbBytes);
-            }
-          };
-
-      postInferenceCallback =
-          new Runnable() {
-            @Override
-            public void run() {
-              image.close();
-              isProcessingFrame = false;
-            }
-          };
-
-      processImage();
+      final boolean taken =
+          onYuvFrame(
+              planes[0].getBuffer(),
+              planes[1].getBuffer(),
+              planes[2].getBuffer(),
+              planes[0].getRowStride(),
+              planes[1].getRowStride(),
+              planes[1].getPixelStride(),
+              image.getTimestamp(),
+              image::close);
+      if (!taken) {
+        image.close();
+      }
     } catch (final Exception e) {
       LOGGER.e(e, "Exception!");
       Trace.endSection();
@@ -292,6 +485,200 @@ public abstract class CameraActivity extends AppCompatActivity
     Trace.endSection();
   }
 
+  /**
+   * Processes a YUV_420_888 frame of the preview size, on the thread that delivers frames. The
+   * planes are read in place rather than copied, so they must stay valid until {@code release} is
+   * run once processImage() is done with the frame.
+   *
+   * @return False, without taking the frame, if the previous frame is still being processed.
+   */
+  private boolean onYuvFrame(
+      final ByteBuffer yPlane,
+      final ByteBuffer uPlane,
+      final ByteBuffer vPlane,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final long timestampNs,
+      final Runnable release) {
+    if (!isProcessingFrame.compareAndSet(false, true)) {
+      return false;
+    }
+    if (rgbBytes == null) {
+      rgbBytes = new int[previewWidth * previewHeight];
+    }
+    this.yRowStride = yRowStride;
+    this.uvRowStride = uvRowStride;
+    this.uvPixelStride = uvPixelStride;
+    final ImageUtils.YuvLayout layout = ImageUtils.YuvLayout.fromPixelStride(uvPixelStride);
+    if (layout != yuvLayout) {
+      LOGGER.i("Camera delivers %s frames, chroma pixel stride %d", layout, uvPixelStride);
+      yuvLayout = layout;
+    }
+    yuvPlanes[0] = yPlane;
+    yuvPlanes[1] = uPlane;
+    yuvPlanes[2] = vPlane;
+    frameTimestampNs = toElapsedRealtimeNanos(timestampNs);
+    recordFrame(timestampNs);
+
+    imageConverter =
+        new Runnable() {
+          @Override
+          public void run() {
+            parallelImageConverter.convertYUV420ToARGB8888(
+                yuvPlanes[0],
+                yuvPlanes[1],
+                yuvPlanes[2],
+                previewWidth,
+                previewHeight,
+                yRowStride,
+                uvRowStride,
+                uvPixelStride,
+                layout,
+                rgbRegion != null ? rgbRegion : new Rect(0, 0, previewWidth, previewHeight),
+                rgbBytes);
+          }
+        };
+
+    postInferenceCallback =
+        new Runnable() {
+          @Override
+          public void run() {
+            release.run();
+            isProcessingFrame.set(false);
+          }
+        };
+
+    processImage();
+    return true;
+  }
+
+  /**
+   * Replays the frames of the {@link YuvFrameFile} at {@code path} in place of the camera. The
+   * replay runs while the activity is resumed and starts over on each resume.
+   */
+  private void setUpReplay(final String path) {
+    final List<YuvFrameFile.Frame> frames;
+    try {
+      frames = YuvFrameFile.read(new File(path));
+    } catch (final IOException e) {
+      LOGGER.e(e, "Could not read replay file %s", path);
+      finish();
+      return;
+    }
+    if (frames.isEmpty()) {
+      LOGGER.e("Replay file %s has no frames", path);
+      finish();
+      return;
+    }
+    // The preview size is fixed by the first frame, so frames of any other size are left out.
+    final YuvFrameFile.Frame firstFrame = frames.get(0);
+    final List<YuvFrameFile.Frame> sameSizeFrames = new ArrayList<>(frames.size());
+    for (final YuvFrameFile.Frame frame : frames) {
+      if (frame.width == firstFrame.width && frame.height == firstFrame.height) {
+        sameSizeFrames.add(frame);
+      }
+    }
+    if (sameSizeFrames.size() < frames.size()) {
+      LOGGER.w(
+          "Skipping %d frames not of size %dx%d",
+          frames.size() - sameSizeFrames.size(),
+          firstFrame.width,
+          firstFrame.height);
+    }
+
+    // Replayed planes are read in place, just like Camera2 ones.
+    useCamera2API = true;
+    getLayoutInflater().inflate(getLayoutId(), (ViewGroup) findViewById(R.id.container), true);
+    previewWidth = firstFrame.width;
+    previewHeight = firstFrame.height;
+    previewRotation = firstFrame.rotation;
+    final boolean maxRate = getIntent().getBooleanExtra(EXTRA_REPLAY_MAX_RATE, false);
+    replayFrameSource =
+        new ReplayFrameSource(
+            sameSizeFrames,
+            maxRate,
+            new ReplayFrameSource.Listener() {
+              @Override
+              public boolean onFrame(final YuvFrameFile.Frame frame) {
+                // At maximum rate every frame is held back until it can reach the detector, so
+                // that each replay detects the same frames.
+                if (maxRate && !hasFrameCapacity()) {
+                  return false;
+                }
+                return onYuvFrame(
+                    frame.yPlane,
+                    frame.uPlane,
+                    frame.vPlane,
+                    frame.yRowStride,
+                    frame.uvRowStride,
+                    frame.uvPixelStride,
+                    frame.timestampNs,
+                    () -> {});
+              }
+
+              @Override
+              public void onReplayFinished(final ReplayFrameSource.Stats stats) {
+                CameraActivity.this.onReplayFinished(stats);
+              }
+            });
+    onPreviewSizeChosen(new Size(previewWidth, previewHeight), previewRotation);
+  }
+
+  /**
+   * Returns a frame timestamp in the {@link SystemClock#elapsedRealtimeNanos()} time base. Camera2
+   * sensor timestamps are in that base when the timestamp source is REALTIME, and usually in the
+   * System.nanoTime() one otherwise. Timestamps in neither, such as replayed ones, are replaced by
+   * the arrival time.
+   */
+  private static long toElapsedRealtimeNanos(final long timestampNs) {
+    final long nowNs = SystemClock.elapsedRealtimeNanos();
+    if (timestampNs <= nowNs && nowNs - timestampNs < MAX_FRAME_AGE_NS) {
+      return timestampNs;
+    }
+    final long monotonicNs = System.nanoTime();
+    if (timestampNs <= monotonicNs && monotonicNs - timestampNs < MAX_FRAME_AGE_NS) {
+      return timestampNs + nowNs - monotonicNs;
+    }
+    return nowNs;
+  }
+
+  /** Queues the current frame for recording, if {@link #EXTRA_RECORD_FILE} is set. */
+  private void recordFrame(final long timestampNs) {
+    if (frameRecorder == null) {
+      return;
+    }
+    frameRecorder.record(
+        yuvPlanes[0],
+        yuvPlanes[1],
+        yuvPlanes[2],
+        previewWidth,
+        previewHeight,
+        previewRotation,
+        yRowStride,
+        uvRowStride,
+        uvPixelStride,
+        timestampNs);
+  }
+
+  /** Called on the replay thread when a replay started by {@link #EXTRA_REPLAY_FILE} is done. */
+  protected void onReplayFinished(final ReplayFrameSource.Stats stats) {}
+
+  /**
+   * Returns whether processImage() can take a frame all the way to the detector right now, without
+   * dropping it or superseding a frame it took earlier. Replays at maximum rate wait for this.
+   */
+  protected boolean hasFrameCapacity() {
+    return true;
+  }
+
+  /** Signals that {@link #hasFrameCapacity()} may have become true, e.g. after a detection. */
+  protected void signalFrameCapacity() {
+    if (replayFrameSource != null) {
+      replayFrameSource.signalReady();
+    }
+  }
+
   @Override
   public synchronized void onStart() {
     LOGGER.d("onStart " + this);
@@ -306,12 +693,25 @@ public abstract class CameraActivity extends AppCompatActivity
     handlerThread = new HandlerThread("inference");
     handlerThread.start();
     handler = new Handler(handlerThread.getLooper());
+
+    if (replayFrameSource != null) {
+      replayFrameSource.start();
+    } else if (getIntent().getBooleanExtra(EXTRA_DUTY_CYCLE, false)) {
+      // The battery broadcast is sticky, so the current state is delivered right away.
+      registerReceiver(batteryReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+    }
   }
 
   @Override
   public synchronized void onPause() {
     LOGGER.d("onPause " + this);
 
+    if (replayFrameSource != null) {
+      replayFrameSource.stop();
+    } else if (getIntent().getBooleanExtra(EXTRA_DUTY_CYCLE, false)) {
+      unregisterReceiver(batteryReceiver);
+    }
+
     handlerThread.quitSafely();
     try {
       handlerThread.join();
@@ -333,6 +733,10 @@ public abstract class CameraActivity extends AppCompatActivity
   @Override
   public synchronized void onDestroy() {
     LOGGER.d("onDestroy " + this);
+    parallelImageConverter.close();
+    if (frameRecorder != null) {
+      frameRecorder.close();
+    }
     super.onDestroy();
   }
 
@@ -444,44 +848,65 @@ public abstract class CameraActivity extends AppCompatActivity
                 public void onPreviewSizeChosen(final Size size, final int rotation) {
                   previewHeight = size.getHeight();
                   previewWidth = size.getWidth();
+                  previewRotation = rotation;
                   CameraActivity.this.onPreviewSizeChosen(size, rotation);
                 }
               },
               this,
               getLayoutId(),
-              getDesiredPreviewFrameSize());
+              previewSizeSelector,
+              frameRateGovernor,
+              dutyCycleController);
 
       camera2Fragment.setCamera(cameraId);
       fragment = camera2Fragment;
     } else {
       fragment =
-          new LegacyCameraConnectionFragment(this, getLayoutId(), getDesiredPreviewFrameSize());
+          new LegacyCameraConnectionFragment(
+              this,
+              previewCallbackBuffers,
+              getLayoutId(),
+              previewSizeSelector,
+              frameRateGovernor,
+              dutyCycleController);
     }
 
     getFragmentManager().beginTransaction().replace(R.id.container, fragment).commit();
   }
 
-  protected void fillBytes(final Plane[] planes, final byte[][] yuvBytes) {
-    // Because of the variable row stride it's not possible to know in
-    // advance the actual necessary dimensions of the yuv planes.
-    for (int i = 0; i < planes.length; ++i) {
-      final ByteBuffer buffer = planes[i].getBuffer();
-      if (yuvBytes[i] == null) {
-        LOGGER.d("Initializing buffer %d at size %d", i, buffer.capacity());
-        yuvBytes[i] = new byte[buffer.capacity()];
-      }
-      buffer.get(yuvBytes[i]);
-    }
+  /**
+   * Reports that the detector ran on a frame in {@code inferenceMs} and found objects with {@code
+   * labels}, so that the camera frame rate can follow how fast frames are consumed, and duty
+   * cycling how much the scene changes.
+   */
+  protected void onFrameDetected(final long inferenceMs, final Collection<String> labels) {
+    frameRateGovernor.onFrameDetected(inferenceMs);
+    dutyCycleController.onFrameDetected(labels);
+  }
+
+  /** Returns the CPU cores of the device, for sizing work to them. */
+  protected CpuTopology getCpuTopology() {
+    return cpuTopology;
+  }
+
+  /** Returns the policy that chose the camera preview size, for reporting its choice. */
+  protected PreviewSizeSelector getPreviewSizeSelector() {
+    return previewSizeSelector;
   }
 
   public boolean isDebug() {
     return debug;
   }
 
+  /**
+   * Releases the current frame back to the camera. Any data from {@link #getRgbBytes()}, {@link
+   * #fillModelInput} or {@link #getLuminance()} must be obtained before this is called.
+   */
   protected void readyForNextImage() {
     if (postInferenceCallback != null) {
       postInferenceCallback.run();
     }
+    signalFrameCapacity();
   }
 
   protected int getScreenOrientation() {
@@ -509,7 +934,7 @@ public abstract class CameraActivity extends AppCompatActivity
     if (v.getId() == R.id.plus) {
       String threads = threadsTextView.getText().toString().trim();
       int numThreads = Integer.parseInt(threads);
-      if (numThreads >= 9) return;
+      if (numThreads >= cpuTopology.getCoreCount()) return;
       numThreads++;
       threadsTextView.setText(String.valueOf(numThreads));
       setNumThreads(numThreads);
@@ -525,6 +950,21 @@ public abstract class CameraActivity extends AppCompatActivity
     }
   }
 
+  /** Shows interpreter options that were set other than through the controls. */
+  protected void showInferenceConfig(final int numThreads, final boolean useNNAPI) {
+    threadsTextView.setText(String.valueOf(numThreads));
+    showUseNNAPI(useNNAPI);
+  }
+
+  /** Shows whether NNAPI is used, as {@link #showInferenceConfig} does. */
+  protected void showUseNNAPI(final boolean useNNAPI) {
+    // Updates the switch without calling setUseNNAPI() again.
+    apiSwitchCompat.setOnCheckedChangeListener(null);
+    apiSwitchCompat.setChecked(useNNAPI);
+    apiSwitchCompat.setText(useNNAPI ? "NNAPI" : "TFLITE");
+    apiSwitchCompat.setOnCheckedChangeListener(this);
+  }
+
   protected void showFrameInfo(String frameInfo) {
     frameValueTextView.setText(frameInfo);
   }
@@ -537,6 +977,10 @@ public abstract class CameraActivity extends AppCompatActivity
     inferenceTimeTextView.setText(inferenceTime);
   }
 
+  protected void showLatency(String latency) {
+    latencyTextView.setText(latency);
+  }
+
   protected abstract void processImage();
 
   protected abstract void onPreviewSizeChosen(final Size size, final int rotation);
@@ -545,6 +989,9 @@ public abstract class CameraActivity extends AppCompatActivity
 
   protected abstract Size getDesiredPreviewFrameSize();
 
+  /** Returns the model input size that preview frames must cover. */
+  protected abstract Size getModelInputSize();
+
   protected abstract void setNumThreads(int numThreads);
 
   protected abstract void setUseNNAPI(boolean isChecked);
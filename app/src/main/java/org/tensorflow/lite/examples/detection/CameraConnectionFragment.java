@@ -44,6 +44,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.text.TextUtils;
+import android.util.Range;
 import android.util.Size;
 import android.util.SparseIntArray;
 import android.view.LayoutInflater;
@@ -88,8 +89,10 @@ public class CameraConnectionFragment extends Fragment {
   private final Semaphore cameraOpenCloseLock = new Semaphore(1);
   /** A {@link OnImageAvailableListener} to receive frames as they are available. */
   private final OnImageAvailableListener imageListener;
-  /** The input size in pixels desired by TensorFlow (width and height of a square bitmap). */
-  private final Size inputSize;
+  /** Chooses the preview size from the model input size. */
+  private final PreviewSizeSelector previewSizeSelector;
+  private final FrameRateGovernor frameRateGovernor;
+  private final DutyCycleController dutyCycleController;
   /** The layout identifier to inflate for this Fragment. */
   private final int layout;
 
@@ -114,6 +117,8 @@ public class CameraConnectionFragment extends Fragment {
   private AutoFitTextureView textureView;
   /** A {@link CameraCaptureSession } for camera preview. */
   private CameraCaptureSession captureSession;
+  /** Whether the repeating request is stopped for a duty cycle gap. */
+  private boolean capturePaused;
   /** A reference to the opened {@link CameraDevice}. */
   private CameraDevice cameraDevice;
   /** The rotation in degrees of the camera sensor from the display. */
@@ -190,11 +195,15 @@ public class CameraConnectionFragment extends Fragment {
       final ConnectionCallback connectionCallback,
       final OnImageAvailableListener imageListener,
       final int layout,
-      final Size inputSize) {
+      final PreviewSizeSelector previewSizeSelector,
+      final FrameRateGovernor frameRateGovernor,
+      final DutyCycleController dutyCycleController) {
     this.cameraConnectionCallback = connectionCallback;
     this.imageListener = imageListener;
     this.layout = layout;
-    this.inputSize = inputSize;
+    this.previewSizeSelector = previewSizeSelector;
+    this.frameRateGovernor = frameRateGovernor;
+    this.dutyCycleController = dutyCycleController;
   }
 
   /**
@@ -251,8 +260,16 @@ public class CameraConnectionFragment extends Fragment {
       final ConnectionCallback callback,
       final OnImageAvailableListener imageListener,
       final int layout,
-      final Size inputSize) {
-    return new CameraConnectionFragment(callback, imageListener, layout, inputSize);
+      final PreviewSizeSelector previewSizeSelector,
+      final FrameRateGovernor frameRateGovernor,
+      final DutyCycleController dutyCycleController) {
+    return new CameraConnectionFragment(
+        callback,
+        imageListener,
+        layout,
+        previewSizeSelector,
+        frameRateGovernor,
+        dutyCycleController);
   }
 
   /**
@@ -332,10 +349,25 @@ public class CameraConnectionFragment extends Fragment {
       // bus' bandwidth limitation, resulting in gorgeous previews but the storage of
       // garbage capture data.
       previewSize =
-          chooseOptimalSize(
-              map.getOutputSizes(SurfaceTexture.class),
-              inputSize.getWidth(),
-              inputSize.getHeight());
+          previewSizeSelector.select(map.getOutputSizes(SurfaceTexture.class), sensorOrientation);
+
+      final List<int[]> fpsRanges = new ArrayList<>();
+      final Range<Integer>[] availableFpsRanges =
+          characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+      if (availableFpsRanges != null) {
+        for (final Range<Integer> range : availableFpsRanges) {
+          fpsRanges.add(new int[] {range.getLower(), range.getUpper()});
+        }
+      }
+      frameRateGovernor.attach(
+          fpsRanges,
+          1,
+          range -> {
+            final Handler handler = backgroundHandler;
+            if (handler != null) {
+              handler.post(() -> setFpsRange(range));
+            }
+          });
 
       // We fit the aspect ratio of TextureView to the size of preview we picked.
       final int orientation = getResources().getConfiguration().orientation;
@@ -379,6 +411,8 @@ public class CameraConnectionFragment extends Fragment {
   private void closeCamera() {
     try {
       cameraOpenCloseLock.acquire();
+      frameRateGovernor.detach();
+      dutyCycleController.detach();
       if (null != captureSession) {
         captureSession.close();
         captureSession = null;
@@ -465,11 +499,32 @@ public class CameraConnectionFragment extends Fragment {
                 // Flash is automatically enabled when necessary.
                 previewRequestBuilder.set(
                     CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
+                // Capture no faster than the detector can use the frames.
+                final int[] fpsRange = frameRateGovernor.getFpsRange();
+                if (fpsRange != null) {
+                  previewRequestBuilder.set(
+                      CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE,
+                      new Range<>(fpsRange[0], fpsRange[1]));
+                }
 
                 // Finally, we start displaying the camera preview.
                 previewRequest = previewRequestBuilder.build();
                 captureSession.setRepeatingRequest(
                     previewRequest, captureCallback, backgroundHandler);
+                capturePaused = false;
+                dutyCycleController.attach(
+                    new DutyCycleController.Capture() {
+                      @Override
+                      public void pause() {
+                        setCapturePaused(true);
+                      }
+
+                      @Override
+                      public void resume() {
+                        setCapturePaused(false);
+                      }
+                    },
+                    backgroundHandler);
               } catch (final CameraAccessException e) {
                 LOGGER.e(e, "Exception!");
               }
@@ -486,6 +541,45 @@ public class CameraConnectionFragment extends Fragment {
     }
   }
 
+  /** Updates the repeating preview request to {@code range}. Runs on the background thread. */
+  private void setFpsRange(final int[] range) {
+    if (null == captureSession || null == previewRequestBuilder) {
+      return;
+    }
+    try {
+      previewRequestBuilder.set(
+          CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, new Range<>(range[0], range[1]));
+      previewRequest = previewRequestBuilder.build();
+      // A paused capture picks up the new request when it resumes.
+      if (!capturePaused) {
+        captureSession.setRepeatingRequest(previewRequest, captureCallback, backgroundHandler);
+      }
+    } catch (final CameraAccessException | IllegalStateException e) {
+      // The session may have been closed since the change was posted.
+      LOGGER.e(e, "Exception!");
+    }
+  }
+
+  /**
+   * Stops or restarts the repeating preview request, for duty-cycled capture. Runs on the
+   * background thread.
+   */
+  private void setCapturePaused(final boolean paused) {
+    if (null == captureSession || paused == capturePaused) {
+      return;
+    }
+    try {
+      if (paused) {
+        captureSession.stopRepeating();
+      } else {
+        captureSession.setRepeatingRequest(previewRequest, captureCallback, backgroundHandler);
+      }
+      capturePaused = paused;
+    } catch (final CameraAccessException | IllegalStateException e) {
+      LOGGER.e(e, "Exception!");
+    }
+  }
+
   /**
    * Configures the necessary {@link Matrix} transformation to `mTextureView`. This method should be
    * called after the camera preview size is determined in setUpCameraOutputs and also the size of
@@ -23,27 +23,44 @@ import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Paint.Style;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.Typeface;
 import android.media.ImageReader.OnImageAvailableListener;
+import android.os.Bundle;
 import android.os.Handler;
+import android.os.Process;
 import android.os.SystemClock;
 import android.speech.tts.TextToSpeech;
+import android.speech.tts.UtteranceProgressListener;
 import android.util.Log;
 import android.util.Size;
 import android.util.TypedValue;
 import android.widget.Toast;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.tensorflow.lite.examples.detection.customview.OverlayView;
 import org.tensorflow.lite.examples.detection.customview.OverlayView.DrawCallback;
 import org.tensorflow.lite.examples.detection.env.BorderedText;
 import org.tensorflow.lite.examples.detection.env.ImageUtils;
+import org.tensorflow.lite.examples.detection.env.LatencyHistogram;
+import org.tensorflow.lite.examples.detection.env.LatestFrameMailbox;
 import org.tensorflow.lite.examples.detection.env.Logger;
+import org.tensorflow.lite.examples.detection.tflite.DetectionBatch;
 import org.tensorflow.lite.examples.detection.tflite.Detector;
 import org.tensorflow.lite.examples.detection.tflite.TFLiteObjectDetectionAPIModel;
 import org.tensorflow.lite.examples.detection.tracking.MultiBoxTracker;
@@ -63,24 +80,93 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
     private static final DetectorMode MODE = DetectorMode.TF_OD_API;
     // Minimum detection confidence to track a detection.
     private static final float MINIMUM_CONFIDENCE_TF_OD_API = 0.5f;
+    // Most detections the model reports per frame.
+    private static final int MAX_DETECTIONS = 10;
     private static final boolean MAINTAIN_ASPECT = false;
     private static final Size DESIRED_PREVIEW_SIZE = new Size(640, 480);
     private static final boolean SAVE_PREVIEW_BITMAP = false;
+    // Converts each camera frame straight into the model input, instead of converting the whole
+    // frame to ARGB and then scaling it into croppedBitmap.
+    private static final boolean USE_FUSED_PREPROCESSING = true;
+    // Largest factor by which the ARGB frame may be box-filtered down during conversion, as long as
+    // the downscaled frame still covers the model input. Only used without fused preprocessing.
+    private static final int MAX_FRAME_DECIMATION = 4;
+    // Preprocesses the next frames while inference runs on the current one, and hands the freshest
+    // preprocessed frame to the inference thread as soon as it is free. Otherwise frames arriving
+    // during inference are dropped without being converted.
+    private static final boolean PIPELINED_CAPTURE = true;
+    // Big cores needed to run two detectors on consecutive frames concurrently, splitting the
+    // interpreter threads between them. Interpreters with fewer threads scale better, which pays
+    // off with enough cores.
+    private static final int MIN_BIG_CORES_PER_DETECTOR_PAIR = 4;
+    // Number of detections between logging the latency percentiles of every stage.
+    private static final int LATENCY_LOG_INTERVAL = 100;
     private static final float TEXT_SIZE_DIP = 10;
     OverlayView trackingOverlay;
     private Integer sensorOrientation;
 
-    private Detector detector;
+    // Loads the detectors in the background from onCreate(), and is joined on the first frame.
+    private FutureTask<DetectorPool<FrameSlot>> detectorPoolTask;
+    // Set once the first frame has joined detectorPoolTask.
+    private volatile DetectorPool<FrameSlot> detectorPool;
+    // Set by getDetectorPoolSize(), which replay may call from super.onCreate().
+    private int detectorPoolSize;
+    // Hands the loaded pool to onDestroy() to close, even if no frame ever joined it.
+    private final Object detectorPoolLock = new Object();
+    private DetectorPool<FrameSlot> loadedDetectorPool;
+    private boolean destroyed;
+    // Set while the interpreter options are benchmarked, during which only one frame at a time is
+    // dispatched, so that detection goes on while leaving most big cores to the benchmarks.
+    private volatile boolean tuning;
+    // Set until the tuned options are applied. Options the user sets meanwhile are kept, rather
+    // than overridden by the tuned ones.
+    private final Object inferenceOptionsLock = new Object();
+    private boolean tunedConfigPending;
+    private Integer userNumThreads;
+    private Boolean userUseNNAPI;
+    // Startup milestones in the elapsedRealtimeNanos() time base, for the time to first
+    // announcement.
+    private long createdNs;
+    private volatile long ttsReadyNs;
+    private volatile long detectorReadyNs;
+    private volatile long firstFrameNs;
+    private final AtomicBoolean firstAnnouncementReported = new AtomicBoolean();
 
     private long lastProcessingTimeMs;
+    // When the pool last delivered a frame. Deliveries are made one at a time, handed between
+    // threads under the pool's lock.
+    private long lastDeliveryNs;
     private Bitmap rgbFrameBitmap = null;
-    private Bitmap croppedBitmap = null;
+    private int frameDecimation = 1;
     private Bitmap cropCopyBitmap = null;
 
-    private boolean computingDetection = false;
+    // Slots that frames are preprocessed into. When pipelined there are three, so that the camera
+    // thread can fill one while another waits in frameMailbox and the detector reads the third,
+    // plus one for each further detector in the pool.
+    private final Queue<FrameSlot> freeSlots = new ConcurrentLinkedQueue<>();
+    // Hands the newest preprocessed frame to the inference thread. Superseded frames go straight
+    // back to freeSlots.
+    private final LatestFrameMailbox<FrameSlot> frameMailbox =
+            new LatestFrameMailbox<>(freeSlots::add);
+    // Held while moving frames from frameMailbox to detectorPool, so that a frame is only taken
+    // when the pool can accept it.
+    private final Object dispatchLock = new Object();
+    // Time spent in each stage by the detector pool, summed over all detections.
+    private final AtomicLong totalInferenceMs = new AtomicLong();
+    private final AtomicLong totalPostprocessingMs = new AtomicLong();
+    // Latency from frame capture to the end of each LatencyStage, indexed by ordinal.
+    private final LatencyHistogram[] stageLatencies = createStageLatencies();
+    // Capture time of the frame each queued utterance announces, until its speech starts.
+    private final Map<String, Long> utteranceCaptureNs = new ConcurrentHashMap<>();
 
     private long timestamp = 0;
 
+    // Reused for every detection as results are delivered one at a time, so that consuming them
+    // allocates nothing.
+    private final RectF detectionRect = new RectF();
+    private final List<String> detectedLabels = new ArrayList<>();
+    private final Paint cropBoxPaint = new Paint();
+
     private Matrix frameToCropTransform;
     private Matrix cropToFrameTransform;
 
@@ -95,26 +181,163 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
 
 
     @Override
-    public void onPreviewSizeChosen(final Size size, final int rotation) {
+    protected void onCreate(final Bundle savedInstanceState) {
+        createdNs = SystemClock.elapsedRealtimeNanos();
+        super.onCreate(savedInstanceState);
+
+        // Loading the detectors takes longer than the camera takes to open, so it starts right away
+        // and the first frame waits for it.
+        final int poolSize = getDetectorPoolSize();
+        detectorPoolTask = new FutureTask<>(() -> loadDetectorPool(poolSize));
+        new Thread(detectorPoolTask, "detector-load").start();
 
         //       Initializing Text to Speech~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
         tts = new TextToSpeech(DetectorActivity.this, new TextToSpeech.OnInitListener() {
 
             @Override
             public void onInit(int status) {
+                ttsReadyNs = SystemClock.elapsedRealtimeNanos();
                 if (status == TextToSpeech.SUCCESS) {
                     int result = tts.setLanguage(Locale.US);
                     if (result == TextToSpeech.LANG_MISSING_DATA ||
                             result == TextToSpeech.LANG_NOT_SUPPORTED) {
                         Log.e("error", "This Language is not supported");
                     }
+                    tts.setOnUtteranceProgressListener(new UtteranceProgressListener() {
+                        @Override
+                        public void onStart(final String utteranceId) {
+                            final Long captureNs = utteranceCaptureNs.remove(utteranceId);
+                            if (captureNs != null) {
+                                final long nowNs = SystemClock.elapsedRealtimeNanos();
+                                recordLatency(LatencyStage.SPEECH_STARTED, captureNs, nowNs);
+                                if (firstAnnouncementReported.compareAndSet(false, true)) {
+                                    logStartup(nowNs);
+                                }
+                            }
+                        }
+
+                        @Override
+                        public void onDone(final String utteranceId) {
+                            utteranceCaptureNs.remove(utteranceId);
+                        }
+
+                        @Override
+                        public void onError(final String utteranceId) {
+                            utteranceCaptureNs.remove(utteranceId);
+                        }
+                    });
                 } else
                     Log.e("error", "Initilization Failed!");
             }
         });
 //        ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+    }
+
+    /**
+     * Returns how many detectors the pool runs, which the frame slots are sized for. Replay chooses
+     * the preview size from within super.onCreate(), so this is computed on first use.
+     */
+    private int getDetectorPoolSize() {
+        if (detectorPoolSize == 0) {
+            detectorPoolSize =
+                    getCpuTopology().getBigCoreCount() >= MIN_BIG_CORES_PER_DETECTOR_PAIR ? 2 : 1;
+        }
+        return detectorPoolSize;
+    }
+
+    /**
+     * Maps the model, creates the detectors and runs each once, so that the first frame does not
+     * pay for the slow first inference. Runs in the background from onCreate().
+     */
+    private DetectorPool<FrameSlot> loadDetectorPool(final int poolSize) throws IOException {
+        final long startNs = SystemClock.elapsedRealtimeNanos();
+        // Inference threads on LITTLE cores would hold back the ones on big cores, so there is one
+        // thread per big core.
+        final int numThreads = getCpuTopology().getBigCoreCount();
+        final List<Detector> detectors;
+        try {
+            detectors =
+                    TFLiteObjectDetectionAPIModel.createPool(
+                            this,
+                            TF_OD_API_MODEL_FILE,
+                            TF_OD_API_LABELS_FILE,
+                            TF_OD_API_INPUT_SIZE,
+                            TF_OD_API_IS_QUANTIZED,
+                            poolSize,
+                            numThreads);
+        } catch (final IOException e) {
+            LOGGER.e(e, "Exception initializing Detector!");
+            runOnUiThread(
+                    () -> {
+                        Toast.makeText(
+                                        getApplicationContext(),
+                                        "Detector could not be initialized",
+                                        Toast.LENGTH_SHORT)
+                                .show();
+                        finish();
+                    });
+            throw e;
+        }
+        final ByteBuffer blankInput =
+                ByteBuffer.allocateDirect(TF_OD_API_INPUT_SIZE * TF_OD_API_INPUT_SIZE * 3);
+        final DetectionBatch warmUpDetections = new DetectionBatch(MAX_DETECTIONS);
+        for (final Detector detector : detectors) {
+            detector.recognizeImage(blankInput, warmUpDetections);
+        }
+        // A higher priority leads the scheduler to place the detectors on big cores.
+        final DetectorPool<FrameSlot> pool =
+                new DetectorPool<>(
+                        detectors,
+                        Process.THREAD_PRIORITY_DISPLAY,
+                        this::inferFrame,
+                        this::onFrameInferred);
+        detectorReadyNs = SystemClock.elapsedRealtimeNanos();
+        LOGGER.i("Detectors loaded in %d ms", (detectorReadyNs - startNs) / 1000000);
+        synchronized (detectorPoolLock) {
+            if (destroyed) {
+                pool.close();
+                throw new CancellationException("Activity destroyed while loading detectors");
+            }
+            loadedDetectorPool = pool;
+        }
+        runOnUiThread(() -> showInferenceConfig(numThreads, false));
+        startAutoTune(pool, detectors.get(0));
+        return pool;
+    }
+
+    /**
+     * Waits for the detectors loading since onCreate(), on the first frame. Returns false if they
+     * could not be loaded.
+     */
+    private boolean joinDetectorPool() {
+        if (firstFrameNs == 0) {
+            firstFrameNs = SystemClock.elapsedRealtimeNanos();
+        }
+        try {
+            detectorPool = detectorPoolTask.get();
+            return true;
+        } catch (final ExecutionException | CancellationException e) {
+            // Already reported by loadDetectorPool().
+            return false;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
 
+    /** Logs how long startup took until the first announcement, and what it waited on. */
+    private void logStartup(final long firstAnnouncementNs) {
+        LOGGER.i(
+                "Time to first announcement %d ms: TTS ready at %d ms, detectors ready at %d ms, "
+                        + "first frame at %d ms",
+                (firstAnnouncementNs - createdNs) / 1000000,
+                (ttsReadyNs - createdNs) / 1000000,
+                (detectorReadyNs - createdNs) / 1000000,
+                (firstFrameNs - createdNs) / 1000000);
+    }
 
+    @Override
+    public void onPreviewSizeChosen(final Size size, final int rotation) {
         final float textSizePx =
                 TypedValue.applyDimension(
                         TypedValue.COMPLEX_UNIT_DIP, TEXT_SIZE_DIP, getResources().getDisplayMetrics());
@@ -125,25 +348,6 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
 
         int cropSize = TF_OD_API_INPUT_SIZE;
 
-        try {
-            detector =
-                    TFLiteObjectDetectionAPIModel.create(
-                            this,
-                            TF_OD_API_MODEL_FILE,
-                            TF_OD_API_LABELS_FILE,
-                            TF_OD_API_INPUT_SIZE,
-                            TF_OD_API_IS_QUANTIZED);
-            cropSize = TF_OD_API_INPUT_SIZE;
-        } catch (final IOException e) {
-            e.printStackTrace();
-            LOGGER.e(e, "Exception initializing Detector!");
-            Toast toast =
-                    Toast.makeText(
-                            getApplicationContext(), "Detector could not be initialized", Toast.LENGTH_SHORT);
-            toast.show();
-            finish();
-        }
-
         previewWidth = size.getWidth();
         previewHeight = size.getHeight();
 
@@ -151,17 +355,51 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
         LOGGER.i("Camera orientation relative to screen canvas: %d", sensorOrientation);
 
         LOGGER.i("Initializing at size %dx%d", previewWidth, previewHeight);
-        rgbFrameBitmap = Bitmap.createBitmap(previewWidth, previewHeight, Config.ARGB_8888);
-        croppedBitmap = Bitmap.createBitmap(cropSize, cropSize, Config.ARGB_8888);
+        if (getPreviewSizeSelector().getSelectedSize() != null) {
+            LOGGER.i("Preview size selected for %s model input", getModelInputSize());
+        }
+        freeSlots.clear();
+        for (int i = 0; i < (PIPELINED_CAPTURE ? 3 : 1) + getDetectorPoolSize() - 1; ++i) {
+            freeSlots.add(
+                    USE_FUSED_PREPROCESSING
+                            ? new FrameSlot(null, ByteBuffer.allocateDirect(cropSize * cropSize * 3))
+                            : new FrameSlot(Bitmap.createBitmap(cropSize, cropSize, Config.ARGB_8888), null));
+        }
+        if (!USE_FUSED_PREPROCESSING) {
+            // The crop is scaled down from the frame anyway, so convert the frame at the smallest
+            // resolution that still has at least one pixel per model input pixel on both axes.
+            frameDecimation = 1;
+            while (frameDecimation * 2 <= MAX_FRAME_DECIMATION
+                    && Math.min(previewWidth, previewHeight) / (frameDecimation * 2) >= cropSize) {
+                frameDecimation *= 2;
+            }
+            setRgbDecimation(frameDecimation);
+            rgbFrameBitmap = Bitmap.createBitmap(
+                    previewWidth / frameDecimation, previewHeight / frameDecimation, Config.ARGB_8888);
+        }
 
         frameToCropTransform =
                 ImageUtils.getTransformationMatrix(
-                        previewWidth, previewHeight,
+                        previewWidth / frameDecimation, previewHeight / frameDecimation,
                         cropSize, cropSize,
                         sensorOrientation, MAINTAIN_ASPECT);
 
         cropToFrameTransform = new Matrix();
         frameToCropTransform.invert(cropToFrameTransform);
+        // Results are reported in full preview coordinates regardless of the conversion size.
+        cropToFrameTransform.postScale(frameDecimation, frameDecimation);
+
+        if (!USE_FUSED_PREPROCESSING) {
+            // Only the part of the frame that frameToCropTransform maps into the crop reaches the
+            // detector, e.g. the center when MAINTAIN_ASPECT is set, so skip converting the rest.
+            final RectF cropInFrame = new RectF(0, 0, cropSize, cropSize);
+            cropToFrameTransform.mapRect(cropInFrame);
+            final Rect region = new Rect();
+            cropInFrame.roundOut(region);
+            if (region.intersect(0, 0, previewWidth, previewHeight)) {
+                setRgbRegion(region);
+            }
+        }
 
         trackingOverlay = (OverlayView) findViewById(R.id.tracking_overlay);
         trackingOverlay.addCallback(
@@ -180,96 +418,292 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
 
     @Override
     protected void processImage() {
+        if (detectorPool == null && !joinDetectorPool()) {
+            readyForNextImage();
+            return;
+        }
         ++timestamp;
         final long currTimestamp = timestamp;
         trackingOverlay.postInvalidate();
 
-        // No mutex needed as this method is not reentrant.
-        if (computingDetection) {
+        final FrameSlot slot = freeSlots.poll();
+        if (slot == null) {
             readyForNextImage();
             return;
         }
-        computingDetection = true;
+        slot.timestamp = currTimestamp;
+        slot.captureNs = getFrameTimestampNs();
         LOGGER.i("Preparing image " + currTimestamp + " for detection in bg thread.");
 
-        rgbFrameBitmap.setPixels(getRgbBytes(), 0, previewWidth, 0, 0, previewWidth, previewHeight);
+        if (USE_FUSED_PREPROCESSING) {
+            fillModelInput(cropToFrameTransform, TF_OD_API_INPUT_SIZE, slot.modelInput);
+            // Conversion and crop are a single step here.
+            slot.convertedNs = SystemClock.elapsedRealtimeNanos();
+            slot.croppedNs = slot.convertedNs;
+
+            readyForNextImage();
+        } else {
+            final int frameWidth = rgbFrameBitmap.getWidth();
+            final int frameHeight = rgbFrameBitmap.getHeight();
+            rgbFrameBitmap.setPixels(getRgbBytes(), 0, frameWidth, 0, 0, frameWidth, frameHeight);
+            slot.convertedNs = SystemClock.elapsedRealtimeNanos();
 
-        readyForNextImage();
+            readyForNextImage();
 
-        final Canvas canvas = new Canvas(croppedBitmap);
-        canvas.drawBitmap(rgbFrameBitmap, frameToCropTransform, null);
-        // For examining the actual TF input.
-        if (SAVE_PREVIEW_BITMAP) {
-            ImageUtils.saveBitmap(croppedBitmap);
+            final Canvas canvas = new Canvas(slot.croppedBitmap);
+            canvas.drawBitmap(rgbFrameBitmap, frameToCropTransform, null);
+            slot.croppedNs = SystemClock.elapsedRealtimeNanos();
+            // For examining the actual TF input.
+            if (SAVE_PREVIEW_BITMAP) {
+                ImageUtils.saveBitmap(slot.croppedBitmap);
+            }
         }
 
+        frameMailbox.post(slot);
+        dispatchFrames();
+    }
 
-        runInBackground(
-                new Runnable() {
-                    @Override
-                    public void run() {
-                        LOGGER.i("Running detection on image " + currTimestamp);
-                        final long startTime = SystemClock.uptimeMillis();
-                        final List<Detector.Recognition> results = detector.recognizeImage(croppedBitmap);
-                        lastProcessingTimeMs = SystemClock.uptimeMillis() - startTime;
-
-                        cropCopyBitmap = Bitmap.createBitmap(croppedBitmap);
-                        final Canvas canvas = new Canvas(cropCopyBitmap);
-                        final Paint paint = new Paint();
-                        paint.setColor(Color.RED);
-                        paint.setStyle(Style.STROKE);
-                        paint.setStrokeWidth(2.0f);
-
-                        float minimumConfidence = MINIMUM_CONFIDENCE_TF_OD_API;
-                        switch (MODE) {
-                            case TF_OD_API:
-                                minimumConfidence = MINIMUM_CONFIDENCE_TF_OD_API;
-                                break;
-                        }
+    /**
+     * Applies the interpreter options tuned for this device to {@code pool}, benchmarking them with
+     * {@code detector} in the background first if they have not been yet. Detection goes on
+     * meanwhile, with the options the pool was loaded with.
+     */
+    private void startAutoTune(final DetectorPool<FrameSlot> pool, final Detector detector) {
+        // Each detector of the pool gets an equal share of the big cores.
+        final int maxThreads = Math.max(1, getCpuTopology().getBigCoreCount() / pool.size());
+        synchronized (inferenceOptionsLock) {
+            tunedConfigPending = true;
+        }
+        new Thread(() -> applyTunedConfig(pool, detector, maxThreads), "autotune").start();
+    }
 
-                        final List<Detector.Recognition> mappedRecognitions =
-                                new ArrayList<Detector.Recognition>();
+    private void applyTunedConfig(
+            final DetectorPool<FrameSlot> pool, final Detector detector, final int maxThreads) {
+        final InferenceAutoTuner tuner = new InferenceAutoTuner(this, TF_OD_API_MODEL_FILE);
+        InferenceAutoTuner.Config config;
+        try {
+            config = tuner.getSavedConfig();
+            if (config == null) {
+                // Below the detector threads, so that the benchmarks do not hold up detection.
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                tuning = true;
+                try {
+                    config = tuner.tune(detector, maxThreads);
+                } finally {
+                    tuning = false;
+                    if (detectorPool != null) {
+                        dispatchFrames();
+                    }
+                }
+            }
+        } catch (final IOException e) {
+            LOGGER.e(e, "Exception tuning inference!");
+            config = null;
+        }
+        final InferenceAutoTuner.Config tunedConfig = config;
+        final int numThreads;
+        final boolean useNNAPI;
+        synchronized (inferenceOptionsLock) {
+            tunedConfigPending = false;
+            if (tunedConfig == null) {
+                return;
+            }
+            LOGGER.i("Using %s", tunedConfig);
+            numThreads =
+                    userNumThreads != null ? userNumThreads : tunedConfig.numThreads * pool.size();
+            useNNAPI = userUseNNAPI != null ? userUseNNAPI : tunedConfig.useNNAPI;
+            pool.setOptions(
+                    numThreads,
+                    tunedConfig.useXNNPACK,
+                    useNNAPI,
+                    e -> LOGGER.e(e, "Failed to apply %s", tunedConfig));
+        }
+        runOnUiThread(() -> showInferenceConfig(numThreads, useNNAPI));
+    }
 
+    /** Submits the newest frame in frameMailbox to the detector pool while it has room for one. */
+    private void dispatchFrames() {
+        synchronized (dispatchLock) {
+            FrameSlot slot;
+            while ((tuning ? detectorPool.isIdle() : detectorPool.hasCapacity())
+                    && (slot = frameMailbox.take()) != null) {
+                detectorPool.submit(slot);
+            }
+        }
+        signalFrameCapacity();
+    }
 
-                        for (final Detector.Recognition result : results) {
-                            final RectF location = result.getLocation();
-                            if (location != null && result.getConfidence() >= minimumConfidence) {
-                                canvas.drawRect(location, paint);
+    @Override
+    protected boolean hasFrameCapacity() {
+        // A new frame is detected if a slot is free and it would not supersede a waiting frame.
+        return !freeSlots.isEmpty() && !frameMailbox.hasPending();
+    }
 
-                                cropToFrameTransform.mapRect(location);
+    /** Runs the detector on a frame. Runs on one of the detector pool's threads. */
+    private void inferFrame(final Detector detector, final FrameSlot slot) {
+        LOGGER.i(
+                "Running detection on image %d (frames produced %d, superseded %d, consumed %d)",
+                slot.timestamp,
+                frameMailbox.getProducedCount(),
+                frameMailbox.getSupersededCount(),
+                frameMailbox.getConsumedCount());
+        final long startTime = SystemClock.uptimeMillis();
+        if (USE_FUSED_PREPROCESSING) {
+            detector.recognizeImage(slot.modelInput, slot.detections);
+        } else {
+            detector.recognizeImage(slot.croppedBitmap, slot.detections);
+        }
+        slot.inferenceMs = SystemClock.uptimeMillis() - startTime;
+        slot.inferredNs = SystemClock.elapsedRealtimeNanos();
+    }
 
-//                                Text to Speak~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
-                                if(!previousResult.contains(""+result.getTitle()))
-                                {
-                                    tts.speak("There is a :"+result.getTitle(), TextToSpeech.QUEUE_ADD, null);
-                                    previousResult = result.getTitle();
-                                }
+    /**
+     * Tracks and announces the results of a frame, then frees its slot. Frames arrive one at a time
+     * and in capture order.
+     */
+    private void onFrameInferred(final FrameSlot slot) {
+        detect(slot);
+        freeSlots.add(slot);
+        dispatchFrames();
+    }
 
+    private void detect(final FrameSlot slot) {
+        final long currTimestamp = slot.timestamp;
+        final DetectionBatch detections = slot.detections;
+        final long startTime = SystemClock.uptimeMillis();
+        lastProcessingTimeMs = slot.inferenceMs;
+        totalInferenceMs.addAndGet(lastProcessingTimeMs);
+        // Preprocessing happened on the camera thread, but is only counted for frames that were
+        // detected rather than superseded.
+        recordLatency(LatencyStage.CONVERTED, slot.captureNs, slot.convertedNs);
+        recordLatency(LatencyStage.CROPPED, slot.captureNs, slot.croppedNs);
+        recordLatency(LatencyStage.INFERRED, slot.captureNs, slot.inferredNs);
+
+        // There is no cropped Bitmap to draw the results on in fused mode.
+        Canvas canvas = null;
+        if (!USE_FUSED_PREPROCESSING) {
+            cropCopyBitmap = Bitmap.createBitmap(slot.croppedBitmap);
+            canvas = new Canvas(cropCopyBitmap);
+        }
+        cropBoxPaint.setColor(Color.RED);
+        cropBoxPaint.setStyle(Style.STROKE);
+        cropBoxPaint.setStrokeWidth(2.0f);
+
+        float minimumConfidence = MINIMUM_CONFIDENCE_TF_OD_API;
+        switch (MODE) {
+            case TF_OD_API:
+                minimumConfidence = MINIMUM_CONFIDENCE_TF_OD_API;
+                break;
+        }
 
-//                                tts.stop();
-                                Toast.makeText(DetectorActivity.this, "" + result.getTitle(), Toast.LENGTH_SHORT).show();
+        // Keeps the confident detections, mapped to frame coordinates, at the front of the batch.
+        detectedLabels.clear();
+        int numMapped = 0;
+        for (int i = 0; i < detections.count; ++i) {
+            if (detections.scores[i] >= minimumConfidence) {
+                final String title = detections.labels[i];
+                detections.getBox(i, detectionRect);
+                if (canvas != null) {
+                    canvas.drawRect(detectionRect, cropBoxPaint);
+                }
+
+                cropToFrameTransform.mapRect(detectionRect);
+
+//                Text to Speak~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+                if(!previousResult.contains(title))
+                {
+                    final String utteranceId = "frame" + currTimestamp;
+                    utteranceCaptureNs.put(utteranceId, slot.captureNs);
+                    tts.speak("There is a :"+title, TextToSpeech.QUEUE_ADD, null, utteranceId);
+                    recordLatency(LatencyStage.SPEECH_DISPATCHED, slot.captureNs, SystemClock.elapsedRealtimeNanos());
+                    previousResult = title;
+                }
+
+
+//                tts.stop();
+                Toast.makeText(DetectorActivity.this, title, Toast.LENGTH_SHORT).show();
+
+                detections.move(i, numMapped);
+                detections.setBox(numMapped, detectionRect);
+                ++numMapped;
+                detectedLabels.add(title);
+            }
+        }
+        detections.count = numMapped;
+
+        tracker.trackResults(detections, currTimestamp);
+        // The pool's detectors overlap, so the time per frame is the interval between deliveries.
+        // While frames arrive slower than the pool finishes them, that interval is the camera's,
+        // and the inference time of the frame is what detection takes.
+        final long deliveryNs = SystemClock.elapsedRealtimeNanos();
+        final long frameMs =
+                lastDeliveryNs == 0
+                        ? lastProcessingTimeMs
+                        : Math.min((deliveryNs - lastDeliveryNs) / 1000000, lastProcessingTimeMs);
+        lastDeliveryNs = deliveryNs;
+        onFrameDetected(frameMs, detectedLabels);
+        trackingOverlay.postInvalidate();
+        totalPostprocessingMs.addAndGet(SystemClock.uptimeMillis() - startTime);
+        recordLatency(LatencyStage.TRACKED, slot.captureNs, SystemClock.elapsedRealtimeNanos());
+        if (frameMailbox.getConsumedCount() % LATENCY_LOG_INTERVAL == 0) {
+            logLatencies();
+        }
+        final LatencyHistogram speechLatency = stageLatencies[LatencyStage.SPEECH_STARTED.ordinal()];
+        final String latency =
+                speechLatency.getCount() == 0
+                        ? "-"
+                        : String.format(
+                                Locale.US,
+                                "%d/%d/%d ms",
+                                speechLatency.getPercentileMs(50),
+                                speechLatency.getPercentileMs(95),
+                                speechLatency.getPercentileMs(99));
+
+        runOnUiThread(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        showFrameInfo(previewWidth + "x" + previewHeight);
+                        showCropInfo(TF_OD_API_INPUT_SIZE + "x" + TF_OD_API_INPUT_SIZE);
+                        showInference(lastProcessingTimeMs + "ms");
+                        showLatency(latency);
+                    }
+                });
+    }
 
-                                result.setLocation(location);
-                                mappedRecognitions.add(result);
-                            }
-                        }
+    @Override
+    protected void onReplayFinished(final ReplayFrameSource.Stats stats) {
+        // Detection may still be running on the last frames, so these cover the frames done so far.
+        final long detections = Math.max(1, frameMailbox.getConsumedCount());
+        LOGGER.i(
+                "Replay detected %d frames (%.1f fps), superseded %d: %.1f ms inference, "
+                        + "%.1f ms postprocessing per frame",
+                frameMailbox.getConsumedCount(),
+                frameMailbox.getConsumedCount() * 1e9 / Math.max(1, stats.elapsedNs),
+                frameMailbox.getSupersededCount(),
+                totalInferenceMs.get() / (double) detections,
+                totalPostprocessingMs.get() / (double) detections);
+        logLatencies();
+    }
 
-                        tracker.trackResults(mappedRecognitions, currTimestamp);
-                        trackingOverlay.postInvalidate();
+    private static LatencyHistogram[] createStageLatencies() {
+        final LatencyStage[] stages = LatencyStage.values();
+        final LatencyHistogram[] histograms = new LatencyHistogram[stages.length];
+        for (int i = 0; i < stages.length; ++i) {
+            histograms[i] = new LatencyHistogram(stages[i].label);
+        }
+        return histograms;
+    }
 
-                        computingDetection = false;
+    private void recordLatency(final LatencyStage stage, final long captureNs, final long stageNs) {
+        stageLatencies[stage.ordinal()].record(stageNs - captureNs);
+    }
 
-                        runOnUiThread(
-                                new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        showFrameInfo(previewWidth + "x" + previewHeight);
-                                        showCropInfo(cropCopyBitmap.getWidth() + "x" + cropCopyBitmap.getHeight());
-                                        showInference(lastProcessingTimeMs + "ms");
-                                    }
-                                });
-                    }
-                });
+    /** Logs the p50/p95/p99 latency from capture to the end of every stage. */
+    private void logLatencies() {
+        for (final LatencyHistogram histogram : stageLatencies) {
+            LOGGER.i("Glass to %s", histogram);
+        }
     }
 
     @Override
@@ -282,37 +716,120 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
         return DESIRED_PREVIEW_SIZE;
     }
 
+    @Override
+    protected Size getModelInputSize() {
+        return new Size(TF_OD_API_INPUT_SIZE, TF_OD_API_INPUT_SIZE);
+    }
+
     // Which detection model to use: by default uses Tensorflow Object Detection API frozen
     // checkpoints.
     private enum DetectorMode {
         TF_OD_API;
     }
 
+    // Pipeline stages whose completion is measured from the frame's capture time, in order.
+    private enum LatencyStage {
+        CONVERTED("conversion"),
+        CROPPED("crop"),
+        INFERRED("inference"),
+        TRACKED("tracking"),
+        SPEECH_DISPATCHED("speech dispatch"),
+        SPEECH_STARTED("speech start");
+
+        final String label;
+
+        LatencyStage(final String label) {
+            this.label = label;
+        }
+    }
+
+    /** A preprocessed frame, in whichever form USE_FUSED_PREPROCESSING feeds to the detector. */
+    private static class FrameSlot {
+        final Bitmap croppedBitmap;
+        // Packed RGB model input filled by fillModelInput().
+        final ByteBuffer modelInput;
+        long timestamp;
+        // Capture time and preprocessing completion times, in the elapsedRealtimeNanos() time base.
+        long captureNs;
+        long convertedNs;
+        long croppedNs;
+        // Filled in by the detector, along with the time it took and when it finished.
+        final DetectionBatch detections = new DetectionBatch(MAX_DETECTIONS);
+        long inferenceMs;
+        long inferredNs;
+
+        FrameSlot(final Bitmap croppedBitmap, final ByteBuffer modelInput) {
+            this.croppedBitmap = croppedBitmap;
+            this.modelInput = modelInput;
+        }
+    }
+
     @Override
     protected void setUseNNAPI(final boolean isChecked) {
-        runInBackground(
-                () -> {
-                    try {
-                        detector.setUseNNAPI(isChecked);
-                    } catch (UnsupportedOperationException e) {
-                        LOGGER.e(e, "Failed to set \"Use NNAPI\".");
+        final DetectorPool<FrameSlot> pool = getLoadedDetectorPool();
+        if (pool == null) {
+            // The tuned options are applied once the detectors have loaded.
+            return;
+        }
+        synchronized (inferenceOptionsLock) {
+            if (tunedConfigPending) {
+                userUseNNAPI = isChecked;
+            }
+        }
+        pool.setUseNNAPI(
+                isChecked,
+                e -> {
+                    LOGGER.e(e, "Failed to set \"Use NNAPI\".");
+                    runOnUiThread(
+                            () -> {
+                                Toast.makeText(this, e.getMessage(), Toast.LENGTH_LONG).show();
+                                // The detectors kept running without the change.
+                                showUseNNAPI(!isChecked);
+                            });
+                });
+    }
+
+    @Override
+    protected void setNumThreads(final int numThreads) {
+        final DetectorPool<FrameSlot> pool = getLoadedDetectorPool();
+        if (pool != null) {
+            synchronized (inferenceOptionsLock) {
+                if (tunedConfigPending) {
+                    userNumThreads = numThreads;
+                }
+            }
+            pool.setNumThreads(
+                    numThreads,
+                    e -> {
+                        LOGGER.e(e, "Failed to set %d threads.", numThreads);
                         runOnUiThread(
                                 () -> {
                                     Toast.makeText(this, e.getMessage(), Toast.LENGTH_LONG).show();
                                 });
-                    }
-                });
+                    });
+        }
     }
 
-    @Override
-    protected void setNumThreads(final int numThreads) {
-        runInBackground(() -> detector.setNumThreads(numThreads));
+    /** Returns the detector pool once it has loaded, whether or not a frame has joined it yet. */
+    private DetectorPool<FrameSlot> getLoadedDetectorPool() {
+        synchronized (detectorPoolLock) {
+            return loadedDetectorPool;
+        }
     }
 
     @Override
     public synchronized void onDestroy() {
         tts.speak("I m Shutting down", 0,null);
         super.onDestroy();
+        final DetectorPool<FrameSlot> pool;
+        synchronized (detectorPoolLock) {
+            destroyed = true;
+            pool = loadedDetectorPool;
+        }
+        // Otherwise the pool is still loading, and is closed as soon as it has loaded.
+        if (pool != null) {
+            pool.close();
+        }
         tts.stop();
         tts.shutdown();
     }
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import java.util.List;
+import org.tensorflow.lite.examples.detection.env.Logger;
+import org.tensorflow.lite.examples.detection.tflite.Detector;
+
+/**
+ * Runs detection on several frames at once, with one {@link Detector} per worker thread. Frames
+ * are dispatched to the workers round-robin, at most one per worker, and their results are
+ * delivered in the order the frames were submitted.
+ *
+ * @param <T> The frame type, which carries its own results.
+ */
+public class DetectorPool<T> {
+  private static final Logger LOGGER = new Logger();
+
+  /** Runs {@code detector} on {@code frame}, on the detector's worker thread. */
+  public interface Task<T> {
+    void detect(Detector detector, T frame);
+  }
+
+  /**
+   * Consumes the results of a frame. Calls are made one at a time and in submission order, on
+   * whichever worker thread finished the frames being delivered.
+   */
+  public interface Callback<T> {
+    void onDetected(T frame);
+  }
+
+  /**
+   * Receives a failure to apply a setting to the detectors, either because they do not support it
+   * or because rebuilding them with it failed. The detectors keep their previous settings.
+   */
+  public interface ErrorListener {
+    void onError(RuntimeException e);
+  }
+
+  private interface Setting {
+    void apply(Detector detector);
+  }
+
+  private final List<Detector> detectors;
+  private final Task<T> task;
+  private final Callback<T> callback;
+  private final HandlerThread[] threads;
+  private final Handler[] handlers;
+  private final Runnable[] runnables;
+
+  // Frame submitted to each worker, and whether its detection has finished. As at most one frame
+  // per worker is in flight, worker i holds the frames whose sequence number is i modulo the size.
+  private final Object[] frames;
+  private final boolean[] detected;
+  private long nextSequence;
+  private long nextDelivery;
+  // Set while a worker thread is delivering results, so that only one does at a time.
+  private boolean delivering;
+  private boolean closed;
+
+  /**
+   * @param detectors The detectors to run, each of which the pool only uses from its own thread.
+   * @param threadPriority The {@link android.os.Process} priority of the worker threads.
+   * @param task Runs a detector on a frame.
+   * @param callback Receives each frame after its detection.
+   */
+  public DetectorPool(
+      final List<Detector> detectors,
+      final int threadPriority,
+      final Task<T> task,
+      final Callback<T> callback) {
+    this.detectors = detectors;
+    this.task = task;
+    this.callback = callback;
+    final int size = detectors.size();
+    threads = new HandlerThread[size];
+    handlers = new Handler[size];
+    runnables = new Runnable[size];
+    frames = new Object[size];
+    detected = new boolean[size];
+    for (int i = 0; i < size; ++i) {
+      threads[i] = new HandlerThread("detector" + i, threadPriority);
+      threads[i].start();
+      handlers[i] = new Handler(threads[i].getLooper());
+      final int worker = i;
+      runnables[i] = () -> runWorker(worker);
+    }
+  }
+
+  public int size() {
+    return detectors.size();
+  }
+
+  /** Returns whether {@link #submit} would accept a frame, i.e. fewer than size() are in flight. */
+  public synchronized boolean hasCapacity() {
+    return !closed && nextSequence - nextDelivery < detectors.size();
+  }
+
+  /** Returns whether no frame is in flight. */
+  public synchronized boolean isIdle() {
+    return nextSequence == nextDelivery;
+  }
+
+  /**
+   * Submits {@code frame} to the next worker in turn. Returns false, without taking the frame, if
+   * {@link #hasCapacity()} is false.
+   */
+  public synchronized boolean submit(final T frame) {
+    if (!hasCapacity()) {
+      return false;
+    }
+    final int worker = (int) (nextSequence % detectors.size());
+    ++nextSequence;
+    frames[worker] = frame;
+    detected[worker] = false;
+    handlers[worker].post(runnables[worker]);
+    return true;
+  }
+
+  /**
+   * Sets the interpreter threads of the pool as a whole, split evenly between the detectors, as
+   * {@link #setUseNNAPI} sets NNAPI.
+   */
+  public void setNumThreads(final int numThreads, final ErrorListener onError) {
+    final int threadsPerDetector = Math.max(1, numThreads / detectors.size());
+    applySetting(detector -> detector.setNumThreads(threadsPerDetector), onError);
+  }
+
+  /**
+   * Sets whether the detectors use NNAPI, on their worker threads. If the detectors do not support
+   * it, or fail to rebuild with it, {@code onError} is called instead, on a worker or rebuild
+   * thread.
+   */
+  public void setUseNNAPI(final boolean useNNAPI, final ErrorListener onError) {
+    applySetting(detector -> detector.setUseNNAPI(useNNAPI), onError);
+  }
+
+  /** Sets whether the detectors use XNNPACK, as {@link #setUseNNAPI} does for NNAPI. */
+  public void setUseXNNPACK(final boolean useXNNPACK, final ErrorListener onError) {
+    applySetting(detector -> detector.setUseXNNPACK(useXNNPACK), onError);
+  }
+
+  /**
+   * Sets all interpreter options of the pool with a single rebuild per detector, rather than one
+   * per option, reporting failures as {@link #setUseNNAPI} does.
+   *
+   * @param numThreads The threads of the pool as a whole, as for {@link #setNumThreads}.
+   */
+  public void setOptions(
+      final int numThreads,
+      final boolean useXNNPACK,
+      final boolean useNNAPI,
+      final ErrorListener onError) {
+    final int threadsPerDetector = Math.max(1, numThreads / detectors.size());
+    applySetting(
+        detector -> detector.setOptions(threadsPerDetector, useXNNPACK, useNNAPI), onError);
+  }
+
+  private void applySetting(final Setting setting, final ErrorListener onError) {
+    handlers[0].post(
+        () -> {
+          // The detectors are all built with the same options, so the first one reports for all.
+          detectors.get(0).setRebuildListener(onError::onError);
+          try {
+            setting.apply(detectors.get(0));
+          } catch (final UnsupportedOperationException e) {
+            // The detectors are all of one kind, so the others would fail the same way.
+            onError.onError(e);
+            return;
+          }
+          for (int i = 1; i < detectors.size(); ++i) {
+            final Detector detector = detectors.get(i);
+            handlers[i].post(() -> setting.apply(detector));
+          }
+        });
+  }
+
+  /** Stops the workers once their frames are done, and closes the detectors. */
+  public void close() {
+    synchronized (this) {
+      closed = true;
+    }
+    for (int i = 0; i < detectors.size(); ++i) {
+      final Detector detector = detectors.get(i);
+      handlers[i].post(detector::close);
+      threads[i].quitSafely();
+    }
+    for (final HandlerThread thread : threads) {
+      try {
+        thread.join();
+      } catch (final InterruptedException e) {
+        LOGGER.e(e, "Exception!");
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void runWorker(final int worker) {
+    final T frame;
+    synchronized (this) {
+      frame = (T) frames[worker];
+    }
+    task.detect(detectors.get(worker), frame);
+    synchronized (this) {
+      detected[worker] = true;
+      if (delivering) {
+        // The delivering thread picks this frame up when it gets to it.
+        return;
+      }
+      delivering = true;
+    }
+    deliverDetected();
+  }
+
+  /** Delivers finished frames in submission order until the next one is still running. */
+  @SuppressWarnings("unchecked")
+  private void deliverDetected() {
+    while (true) {
+      final T frame;
+      synchronized (this) {
+        final int worker = (int) (nextDelivery % detectors.size());
+        if (nextDelivery == nextSequence || !detected[worker]) {
+          delivering = false;
+          return;
+        }
+        frame = (T) frames[worker];
+        frames[worker] = null;
+        detected[worker] = false;
+        ++nextDelivery;
+      }
+      callback.onDetected(frame);
+    }
+  }
+}
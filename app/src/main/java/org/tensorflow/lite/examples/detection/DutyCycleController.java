@@ -0,0 +1,202 @@
+/*
+ * Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import org.tensorflow.lite.examples.detection.env.LatencyHistogram;
+import org.tensorflow.lite.examples.detection.env.Logger;
+
+/**
+ * Alternates the camera between short bursts of capture and idle gaps in which the repeating
+ * capture is stopped, to save power over long sessions. Gaps are short while the detected objects
+ * keep changing and long while the scene is static, and are stretched as the battery runs down.
+ * The time to the first frame after resuming is measured, and gaps are shortened so that the
+ * camera is never blind for longer than {@link #MAX_BLIND_MS} including that time.
+ */
+public class DutyCycleController {
+  private static final Logger LOGGER = new Logger();
+
+  /** Stops and restarts the camera's repeating capture, on the attached handler's thread. */
+  public interface Capture {
+    void pause();
+
+    void resume();
+  }
+
+  // Capture time per burst, counted from the first frame after resuming.
+  private static final long BURST_MS = 1500;
+  // Detections a burst must include before it may end, so that its frames get announced.
+  private static final int MIN_DETECTIONS_PER_BURST = 2;
+  private static final long MIN_GAP_MS = 250;
+  private static final long MAX_GAP_MS = 4000;
+  // Longest time between frames, i.e. the gap plus the resume latency, so that new objects are
+  // still announced in time.
+  private static final long MAX_BLIND_MS = 3000;
+  // Weight of each burst in the scene activity average.
+  private static final float ACTIVITY_SMOOTHING = 0.5f;
+
+  private final boolean enabled;
+  private final LatencyHistogram resumeLatency = new LatencyHistogram("capture resume");
+  private final Runnable endBurstRunnable = this::endBurst;
+  private final Runnable resumeRunnable = this::resumeCapture;
+
+  private Capture capture;
+  private Handler handler;
+  // Set from resuming capture until its first frame arrives, otherwise -1.
+  private long resumeRequestedNs = -1;
+
+  // Fraction of recent detections whose labels differed from the detection before.
+  private float sceneActivity = 1;
+  private int burstDetections;
+  private int burstChanges;
+  private Set<String> previousLabels = Collections.emptySet();
+  private float batteryLevel = 1;
+  private boolean charging;
+
+  /** @param enabled Whether to duty-cycle at all. Otherwise every call is a no-op. */
+  public DutyCycleController(final boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /**
+   * Starts duty-cycling {@code capture}, which has just started, with the callbacks posted to
+   * {@code handler}.
+   */
+  public synchronized void attach(final Capture capture, final Handler handler) {
+    if (!enabled) {
+      return;
+    }
+    detach();
+    this.capture = capture;
+    this.handler = handler;
+    resumeRequestedNs = -1;
+    burstDetections = 0;
+    burstChanges = 0;
+    handler.postDelayed(endBurstRunnable, BURST_MS);
+  }
+
+  /** Stops duty-cycling, when the camera is closed. */
+  public synchronized void detach() {
+    if (handler != null) {
+      handler.removeCallbacks(endBurstRunnable);
+      handler.removeCallbacks(resumeRunnable);
+      LOGGER.i("Duty cycle %s", resumeLatency);
+    }
+    capture = null;
+    handler = null;
+  }
+
+  /** Updates the battery state that gap lengths are scaled by. */
+  public synchronized void setBatteryState(final float level, final boolean charging) {
+    this.batteryLevel = level;
+    this.charging = charging;
+  }
+
+  /** Counts a frame delivered by the camera, which ends a resume. */
+  public synchronized void onFrameDelivered() {
+    if (resumeRequestedNs < 0 || handler == null) {
+      return;
+    }
+    resumeLatency.record(SystemClock.elapsedRealtimeNanos() - resumeRequestedNs);
+    resumeRequestedNs = -1;
+    handler.postDelayed(endBurstRunnable, BURST_MS);
+  }
+
+  /** Counts a detection that found objects with {@code labels}, for the scene activity. */
+  public synchronized void onFrameDetected(final Collection<String> labels) {
+    if (!enabled) {
+      return;
+    }
+    final Set<String> labelSet = new HashSet<>(labels);
+    if (!labelSet.equals(previousLabels)) {
+      ++burstChanges;
+    }
+    ++burstDetections;
+    previousLabels = labelSet;
+  }
+
+  private void endBurst() {
+    final Capture pausedCapture;
+    final long gapMs;
+    synchronized (this) {
+      if (capture == null) {
+        return;
+      }
+      if (burstDetections < MIN_DETECTIONS_PER_BURST) {
+        handler.postDelayed(endBurstRunnable, BURST_MS / 4);
+        return;
+      }
+      sceneActivity +=
+          ACTIVITY_SMOOTHING * (burstChanges / (float) burstDetections - sceneActivity);
+      burstDetections = 0;
+      burstChanges = 0;
+      gapMs = getGapMs();
+      if (gapMs <= 0) {
+        // Not worth pausing, so keep capturing for another burst.
+        handler.postDelayed(endBurstRunnable, BURST_MS);
+        return;
+      }
+      pausedCapture = capture;
+      handler.postDelayed(resumeRunnable, gapMs);
+    }
+    LOGGER.d("Pausing capture for %d ms, scene activity %.2f", gapMs, sceneActivity);
+    pausedCapture.pause();
+  }
+
+  private void resumeCapture() {
+    final Capture resumedCapture;
+    synchronized (this) {
+      if (capture == null) {
+        return;
+      }
+      resumeRequestedNs = SystemClock.elapsedRealtimeNanos();
+      resumedCapture = capture;
+    }
+    resumedCapture.resume();
+  }
+
+  private long getGapMs() {
+    return computeGapMs(sceneActivity, batteryLevel, charging, resumeLatency.getPercentileMs(95));
+  }
+
+  /**
+   * Returns the length of the next gap, or 0 if capture should not pause.
+   *
+   * @param resumeP95Ms The 95th percentile resume latency, or a negative value if none was
+   *     measured yet.
+   */
+  static long computeGapMs(
+      final float sceneActivity,
+      final float batteryLevel,
+      final boolean charging,
+      final long resumeP95Ms) {
+    if (charging) {
+      return 0;
+    }
+    long gapMs = MIN_GAP_MS + (long) ((MAX_GAP_MS - MIN_GAP_MS) * (1 - sceneActivity));
+    // Half as long on a full battery, and up to one and a half times as long on an empty one.
+    gapMs = (long) (gapMs * (1.5f - batteryLevel));
+    final long maxGapMs = MAX_BLIND_MS - Math.max(0, resumeP95Ms);
+    gapMs = Math.min(gapMs, maxGapMs);
+    return gapMs >= MIN_GAP_MS ? gapMs : 0;
+  }
+}
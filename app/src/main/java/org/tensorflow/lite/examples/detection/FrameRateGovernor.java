@@ -0,0 +1,215 @@
+/*
+ * Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection;
+
+import android.os.SystemClock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.tensorflow.lite.examples.detection.env.Logger;
+
+/**
+ * Chooses the camera frame rate range from how fast the detector consumes frames, so that the
+ * camera does not capture, deliver and convert frames that are only going to be dropped. It keeps
+ * a moving average of the inference time, and targets a frame rate somewhat above what the
+ * detector can sustain. A lower range is only chosen while many frames are actually being dropped,
+ * and a higher one as soon as inference gets faster, e.g. after the thread count changes. Either
+ * change has to be proposed by consecutive evaluations before it is applied.
+ */
+public class FrameRateGovernor {
+  private static final Logger LOGGER = new Logger();
+
+  /** Applies a frame rate range chosen by the governor to the camera. */
+  public interface Listener {
+    /** Called on the inference thread with one of the supported ranges, in their own units. */
+    void onFpsRangeChanged(int[] range);
+  }
+
+  // Weight of each new inference time in the moving average.
+  private static final float INFERENCE_TIME_SMOOTHING = 0.2f;
+  // Frames captured per frame the detector can take, so that a fresh frame is usually waiting
+  // when the detector frees up.
+  private static final float CAPTURE_HEADROOM = 1.5f;
+  private static final long EVALUATION_INTERVAL_MS = 1000;
+  // Fraction of the delivered frames that must go undetected before the rate is lowered.
+  private static final float MIN_DROP_RATE_TO_LOWER = 0.25f;
+  // Consecutive evaluations that must propose the same range before it is applied.
+  private static final int STABLE_EVALUATIONS = 2;
+
+  private final AtomicLong deliveredFrames = new AtomicLong();
+
+  // Supported ranges as given, and their bounds in frames per second.
+  private List<int[]> ranges;
+  private float[] minFps;
+  private float[] maxFps;
+  private int currentIndex = -1;
+  private Listener listener;
+
+  private float averageInferenceMs = -1;
+  private long detectedFrames;
+  private long windowStartMs;
+  private long windowStartDelivered;
+  private long windowStartDetected;
+  private int proposedIndex = -1;
+  private int proposedCount;
+
+  /**
+   * Sets the frame rate ranges the camera supports and the listener that applies changes, when a
+   * camera is opened.
+   *
+   * @param unitsPerFps The scale of the range bounds, e.g. 1000 for Camera1 ranges.
+   */
+  public void attach(
+      final List<int[]> supportedRanges, final int unitsPerFps, final Listener listener) {
+    attach(supportedRanges, unitsPerFps, listener, SystemClock.uptimeMillis());
+  }
+
+  synchronized void attach(
+      final List<int[]> supportedRanges,
+      final int unitsPerFps,
+      final Listener listener,
+      final long nowMs) {
+    if (supportedRanges == null || supportedRanges.isEmpty()) {
+      this.ranges = null;
+      this.listener = null;
+      return;
+    }
+    ranges = new ArrayList<>(supportedRanges);
+    minFps = new float[ranges.size()];
+    maxFps = new float[ranges.size()];
+    for (int i = 0; i < ranges.size(); ++i) {
+      minFps[i] = ranges.get(i)[0] / (float) unitsPerFps;
+      maxFps[i] = ranges.get(i)[1] / (float) unitsPerFps;
+    }
+    this.listener = listener;
+    // Start from the fastest range, or from what the detector was last known to sustain.
+    currentIndex =
+        averageInferenceMs > 0 ? chooseIndex(getTargetFps()) : chooseIndex(Float.MAX_VALUE);
+    proposedIndex = -1;
+    proposedCount = 0;
+    resetWindow(nowMs);
+  }
+
+  /** Stops applying changes, when the camera is closed. */
+  public synchronized void detach() {
+    ranges = null;
+    listener = null;
+  }
+
+  /** Returns the range the camera should currently use, or null if there is no camera. */
+  public synchronized int[] getFpsRange() {
+    return ranges != null ? ranges.get(currentIndex) : null;
+  }
+
+  /** Counts a frame delivered by the camera, whether or not it is going to be detected. */
+  public void onFrameDelivered() {
+    deliveredFrames.incrementAndGet();
+  }
+
+  /** Counts a frame that the detector ran on, and adjusts the range when one is due. */
+  public void onFrameDetected(final long inferenceMs) {
+    onFrameDetected(inferenceMs, SystemClock.uptimeMillis());
+  }
+
+  synchronized void onFrameDetected(final long inferenceMs, final long nowMs) {
+    ++detectedFrames;
+    averageInferenceMs =
+        averageInferenceMs < 0
+            ? inferenceMs
+            : averageInferenceMs + INFERENCE_TIME_SMOOTHING * (inferenceMs - averageInferenceMs);
+
+    if (ranges == null || nowMs - windowStartMs < EVALUATION_INTERVAL_MS) {
+      return;
+    }
+    final long delivered = deliveredFrames.get() - windowStartDelivered;
+    final long detected = detectedFrames - windowStartDetected;
+    resetWindow(nowMs);
+    if (delivered == 0) {
+      return;
+    }
+    final float dropRate = Math.max(0, 1 - detected / (float) delivered);
+
+    int candidate = chooseIndex(getTargetFps());
+    if (maxFps[candidate] < maxFps[currentIndex] && dropRate < MIN_DROP_RATE_TO_LOWER) {
+      candidate = currentIndex;
+    }
+    if (candidate == currentIndex) {
+      proposedIndex = -1;
+      proposedCount = 0;
+      return;
+    }
+    if (candidate == proposedIndex) {
+      ++proposedCount;
+    } else {
+      proposedIndex = candidate;
+      proposedCount = 1;
+    }
+    if (proposedCount < STABLE_EVALUATIONS) {
+      return;
+    }
+
+    LOGGER.i(
+        "Frame rate %.0f-%.0f -> %.0f-%.0f fps: %.1f ms inference, %.0f%% of frames dropped",
+        minFps[currentIndex],
+        maxFps[currentIndex],
+        minFps[candidate],
+        maxFps[candidate],
+        averageInferenceMs,
+        dropRate * 100);
+    currentIndex = candidate;
+    proposedIndex = -1;
+    proposedCount = 0;
+    if (listener != null) {
+      listener.onFpsRangeChanged(ranges.get(currentIndex));
+    }
+  }
+
+  private float getTargetFps() {
+    return CAPTURE_HEADROOM * 1000 / Math.max(1, averageInferenceMs);
+  }
+
+  /**
+   * Returns the index of the slowest range that still reaches {@code targetFps}, preferring the
+   * widest one so that auto-exposure can lengthen exposures in low light. If no range reaches it,
+   * returns the fastest range.
+   */
+  private int chooseIndex(final float targetFps) {
+    int best = -1;
+    int fastest = 0;
+    for (int i = 0; i < ranges.size(); ++i) {
+      if (maxFps[i] > maxFps[fastest]
+          || (maxFps[i] == maxFps[fastest] && minFps[i] < minFps[fastest])) {
+        fastest = i;
+      }
+      if (maxFps[i] < targetFps) {
+        continue;
+      }
+      if (best < 0
+          || maxFps[i] < maxFps[best]
+          || (maxFps[i] == maxFps[best] && minFps[i] < minFps[best])) {
+        best = i;
+      }
+    }
+    return best >= 0 ? best : fastest;
+  }
+
+  private void resetWindow(final long nowMs) {
+    windowStartMs = nowMs;
+    windowStartDelivered = deliveredFrames.get();
+    windowStartDetected = detectedFrames;
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import org.tensorflow.lite.examples.detection.env.LatencyHistogram;
+import org.tensorflow.lite.examples.detection.env.Logger;
+import org.tensorflow.lite.examples.detection.tflite.Detector;
+
+/**
+ * Finds the interpreter options with the lowest p95 inference latency on this device, by
+ * benchmarking every thread count with XNNPACK on and off, and with NNAPI where the device has it.
+ * The winner is saved per device model and model file, so that tuning only happens once.
+ */
+public class InferenceAutoTuner {
+  private static final Logger LOGGER = new Logger();
+
+  private static final String PREFS_NAME = "inference_tuning";
+  private static final int RUNS_PER_CANDIDATE = 20;
+
+  /** A set of interpreter options. */
+  public static final class Config {
+    public final int numThreads;
+    public final boolean useXNNPACK;
+    public final boolean useNNAPI;
+
+    public Config(final int numThreads, final boolean useXNNPACK, final boolean useNNAPI) {
+      this.numThreads = numThreads;
+      this.useXNNPACK = useXNNPACK;
+      this.useNNAPI = useNNAPI;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          Locale.US, "%d threads, XNNPACK %b, NNAPI %b", numThreads, useXNNPACK, useNNAPI);
+    }
+  }
+
+  private final Context context;
+  private final String modelFilename;
+  // Computed from the model file on first use.
+  private String cachedKey;
+
+  /** @param modelFilename The model file path relative to the assets folder */
+  public InferenceAutoTuner(final Context context, final String modelFilename) {
+    this.context = context;
+    this.modelFilename = modelFilename;
+  }
+
+  /**
+   * Returns the options saved for this device and model, or null if they have not been tuned yet.
+   * This reads the model file, so call it in the background.
+   */
+  public Config getSavedConfig() throws IOException {
+    final SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    final String key = getKey();
+    if (!prefs.contains(key + "/threads")) {
+      return null;
+    }
+    return new Config(
+        prefs.getInt(key + "/threads", 1),
+        prefs.getBoolean(key + "/xnnpack", true),
+        prefs.getBoolean(key + "/nnapi", false));
+  }
+
+  /**
+   * Tunes the options with {@code detector} and saves the winner for this device and model.
+   * Returns null if the detector cannot be tuned. This may take several seconds, so call it in the
+   * background.
+   *
+   * @param maxThreads The most threads to try.
+   */
+  public Config tune(final Detector detector, final int maxThreads) throws IOException {
+    final Config config = benchmark(detector, maxThreads);
+    if (config != null) {
+      final String key = getKey();
+      context
+          .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+          .edit()
+          .putInt(key + "/threads", config.numThreads)
+          .putBoolean(key + "/xnnpack", config.useXNNPACK)
+          .putBoolean(key + "/nnapi", config.useNNAPI)
+          .apply();
+    }
+    return config;
+  }
+
+  private Config benchmark(final Detector detector, final int maxThreads) {
+    // NNAPI is only usable from Android 8.1.
+    final boolean hasNNAPI = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1;
+    final LatencyHistogram latency = new LatencyHistogram("tuning");
+    Config best = null;
+    int bestP95Ms = Integer.MAX_VALUE;
+    // Fewer threads come first, so that they win ties and leave cores free.
+    for (int numThreads = 1; numThreads <= maxThreads; ++numThreads) {
+      // XNNPACK on, XNNPACK off, then NNAPI with XNNPACK for the ops that NNAPI leaves to the CPU.
+      for (int i = 0; i < (hasNNAPI ? 3 : 2); ++i) {
+        final Config candidate = new Config(numThreads, i != 1, i == 2);
+        latency.reset();
+        try {
+          for (final long durationNs :
+              detector.benchmark(
+                  numThreads, candidate.useXNNPACK, candidate.useNNAPI, RUNS_PER_CANDIDATE)) {
+            latency.record(durationNs);
+          }
+        } catch (final UnsupportedOperationException e) {
+          LOGGER.w("Detector cannot be tuned: %s", e.getMessage());
+          return null;
+        } catch (final RuntimeException e) {
+          LOGGER.e(e, "Skipping %s", candidate);
+          continue;
+        }
+        final int p95Ms = latency.getPercentileMs(95);
+        LOGGER.i("Tuning %s: %s", candidate, latency);
+        if (p95Ms < bestP95Ms) {
+          best = candidate;
+          bestP95Ms = p95Ms;
+        }
+      }
+    }
+    LOGGER.i("Tuned to %s, p95 %d ms", best, bestP95Ms);
+    return best;
+  }
+
+  /** Returns the preference key of this device model and model file. */
+  private String getKey() throws IOException {
+    if (cachedKey != null) {
+      return cachedKey;
+    }
+    final CRC32 crc = new CRC32();
+    final byte[] buffer = new byte[64 * 1024];
+    try (InputStream in = context.getAssets().open(modelFilename)) {
+      int read;
+      while ((read = in.read(buffer)) > 0) {
+        crc.update(buffer, 0, read);
+      }
+    }
+    cachedKey = Build.MODEL + "/" + Long.toHexString(crc.getValue());
+    return cachedKey;
+  }
+}
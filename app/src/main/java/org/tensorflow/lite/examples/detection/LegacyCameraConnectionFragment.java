@@ -8,6 +8,7 @@ import android.hardware.Camera.CameraInfo;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
 import android.util.Size;
 import android.util.SparseIntArray;
 import android.view.LayoutInflater;
@@ -36,7 +37,10 @@ public class LegacyCameraConnectionFragment extends Fragment {
 
   private Camera camera;
   private Camera.PreviewCallback imageListener;
-  private Size desiredSize;
+  private final PreviewCallbackBufferRing callbackBuffers;
+  private final PreviewSizeSelector previewSizeSelector;
+  private final FrameRateGovernor frameRateGovernor;
+  private final DutyCycleController dutyCycleController;
   /** The layout identifier to inflate for this Fragment. */
   private int layout;
   /** An {@link AutoFitTextureView} for camera preview. */
@@ -72,10 +76,18 @@ public class LegacyCameraConnectionFragment extends Fragment {
   private HandlerThread backgroundThread;
 
   public LegacyCameraConnectionFragment(
-      final Camera.PreviewCallback imageListener, final int layout, final Size desiredSize) {
+      final Camera.PreviewCallback imageListener,
+      final PreviewCallbackBufferRing callbackBuffers,
+      final int layout,
+      final PreviewSizeSelector previewSizeSelector,
+      final FrameRateGovernor frameRateGovernor,
+      final DutyCycleController dutyCycleController) {
     this.imageListener = imageListener;
+    this.callbackBuffers = callbackBuffers;
     this.layout = layout;
-    this.desiredSize = desiredSize;
+    this.previewSizeSelector = previewSizeSelector;
+    this.frameRateGovernor = frameRateGovernor;
+    this.dutyCycleController = dutyCycleController;
   }
 
   @Override
@@ -151,10 +163,20 @@ public class LegacyCameraConnectionFragment extends Fragment {
       for (Camera.Size size : cameraSizes) {
         sizes[i++] = new Size(size.width, size.height);
       }
-      Size previewSize =
-              CameraConnectionFragment.chooseOptimalSize(
-                      sizes, desiredSize.getWidth(), desiredSize.getHeight());
+      CameraInfo cameraInfo = new CameraInfo();
+      Camera.getCameraInfo(index, cameraInfo);
+      Size previewSize = previewSizeSelector.select(sizes, cameraInfo.orientation);
       parameters.setPreviewSize(previewSize.getWidth(), previewSize.getHeight());
+      // Camera1 ranges are in frames per 1000 seconds. The camera was opened on this thread, so
+      // changes are applied here too.
+      frameRateGovernor.attach(
+          parameters.getSupportedPreviewFpsRange(),
+          1000,
+          range -> textureView.post(() -> setPreviewFpsRange(range)));
+      final int[] fpsRange = frameRateGovernor.getFpsRange();
+      if (fpsRange != null) {
+        parameters.setPreviewFpsRange(fpsRange[0], fpsRange[1]);
+      }
       camera.setDisplayOrientation(90);
       camera.setParameters(parameters);
       camera.setPreviewTexture(availableSurfaceTexture);
@@ -164,15 +186,50 @@ public class LegacyCameraConnectionFragment extends Fragment {
 
     camera.setPreviewCallbackWithBuffer(imageListener);
     Camera.Size s = camera.getParameters().getPreviewSize();
-    camera.addCallbackBuffer(new byte[ImageUtils.getYUVByteSize(s.height, s.width)]);
+    callbackBuffers.attach(camera, ImageUtils.getYUVByteSize(s.height, s.width));
 
     textureView.setAspectRatio(s.height, s.width);
 
     camera.startPreview();
+    // pause() and resume() run on the main looper. The fragment opens and releases the camera from
+    // its lifecycle callbacks on the main thread too, so they never race stopCamera().
+    dutyCycleController.attach(
+        new DutyCycleController.Capture() {
+          @Override
+          public void pause() {
+            if (camera != null) {
+              camera.stopPreview();
+            }
+          }
+
+          @Override
+          public void resume() {
+            if (camera != null) {
+              camera.startPreview();
+            }
+          }
+        },
+        new Handler(Looper.getMainLooper()));
+  }
+
+  private void setPreviewFpsRange(final int[] range) {
+    if (camera == null) {
+      return;
+    }
+    try {
+      final Camera.Parameters parameters = camera.getParameters();
+      parameters.setPreviewFpsRange(range[0], range[1]);
+      camera.setParameters(parameters);
+    } catch (final RuntimeException e) {
+      LOGGER.e(e, "Exception!");
+    }
   }
 
   protected void stopCamera() {
     if (camera != null) {
+      frameRateGovernor.detach();
+      dutyCycleController.detach();
+      callbackBuffers.detach();
       camera.stopPreview();
       camera.setPreviewCallback(null);
       camera.release();
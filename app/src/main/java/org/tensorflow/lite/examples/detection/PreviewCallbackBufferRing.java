@@ -0,0 +1,121 @@
+/*
+ * Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection;
+
+import android.hardware.Camera;
+import org.tensorflow.lite.examples.detection.env.Logger;
+
+/**
+ * A fixed set of preallocated preview buffers for {@link
+ * Camera#setPreviewCallbackWithBuffer(Camera.PreviewCallback)}. The camera can only fill buffers
+ * it has been given back, so with a single buffer every frame that arrives while the app still
+ * holds it is dropped by the camera. Keeping several buffers queued lets the camera keep filling
+ * frames while one is being processed, without allocating per frame.
+ *
+ * <p>Each buffer is either queued with the camera or held by the app between {@link
+ * #onFrameDelivered(byte[])} and {@link #release(byte[])}.
+ */
+public class PreviewCallbackBufferRing {
+  private static final Logger LOGGER = new Logger();
+
+  private final int count;
+  private byte[][] buffers;
+  private boolean[] held;
+  private Camera camera;
+  private int heldCount;
+
+  public PreviewCallbackBufferRing(final int count) {
+    if (count < 1) {
+      throw new IllegalArgumentException("Need at least one preview buffer, got " + count);
+    }
+    this.count = count;
+  }
+
+  /**
+   * Hands every buffer not held by the app to {@code camera}, allocating them first if the frame
+   * size has changed. Held buffers are handed over when they are released.
+   */
+  public synchronized void attach(final Camera camera, final int bufferSize) {
+    if (buffers == null || buffers[0].length != bufferSize) {
+      LOGGER.i("Allocating %d preview buffers of %d bytes", count, bufferSize);
+      buffers = new byte[count][bufferSize];
+      held = new boolean[count];
+      heldCount = 0;
+    }
+    this.camera = camera;
+    for (int i = 0; i < count; ++i) {
+      if (!held[i]) {
+        camera.addCallbackBuffer(buffers[i]);
+      }
+    }
+  }
+
+  /** Stops handing buffers back to the camera, before it is released. */
+  public synchronized void detach() {
+    camera = null;
+  }
+
+  /** Records that the camera delivered {@code data} to the app. */
+  public synchronized void onFrameDelivered(final byte[] data) {
+    final int index = indexOf(data);
+    if (index < 0 || held[index]) {
+      return;
+    }
+    held[index] = true;
+    ++heldCount;
+    if (heldCount == count) {
+      LOGGER.w("All %d preview buffers are held, the camera has none to fill", count);
+    }
+  }
+
+  /**
+   * Returns {@code data} to the attached camera to be filled again. Must be called exactly once for
+   * every delivered frame, including frames that are dropped without being processed.
+   */
+  public synchronized void release(final byte[] data) {
+    final int index = indexOf(data);
+    if (index < 0 || !held[index]) {
+      return;
+    }
+    held[index] = false;
+    --heldCount;
+    // While no camera is attached the buffer is queued by the next attach() instead.
+    if (camera != null) {
+      camera.addCallbackBuffer(data);
+    }
+  }
+
+  /** Returns the number of buffers currently held by the app rather than the camera. */
+  public synchronized int getHeldCount() {
+    return heldCount;
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+  private int indexOf(final byte[] data) {
+    if (buffers != null) {
+      for (int i = 0; i < buffers.length; ++i) {
+        if (buffers[i] == data) {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+}
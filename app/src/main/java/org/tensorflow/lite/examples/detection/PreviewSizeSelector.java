@@ -0,0 +1,108 @@
+/*
+ * Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection;
+
+import android.util.Size;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.tensorflow.lite.examples.detection.env.Logger;
+
+/**
+ * Chooses the camera preview size from the model input size rather than a fixed desired size.
+ * Candidates are the sizes that, once rotated by the sensor orientation, are at least as large as
+ * the model input on both axes, so the crop never has to upscale. Of those, sizes with the aspect
+ * ratio of the largest preview size are preferred, since it spans the sensor's full field of view,
+ * and the smallest by area is chosen: every per-frame conversion scales with the frame area or
+ * with the model input, so no larger covering size is cheaper.
+ */
+public class PreviewSizeSelector {
+  private static final Logger LOGGER = new Logger();
+
+  // Relative aspect ratio difference still treated as the same field of view.
+  private static final float ASPECT_RATIO_TOLERANCE = 0.01f;
+
+  private final Size modelInputSize;
+  private final Size fallbackSize;
+  private volatile Size selectedSize;
+
+  /**
+   * @param modelInputSize The width and height of the model input, in upright orientation.
+   * @param fallbackSize The desired size to pick by area if no preview size covers the model
+   *     input.
+   */
+  public PreviewSizeSelector(final Size modelInputSize, final Size fallbackSize) {
+    this.modelInputSize = modelInputSize;
+    this.fallbackSize = fallbackSize;
+  }
+
+  /**
+   * Returns the preview size to use out of {@code choices}.
+   *
+   * @param sensorOrientation Rotation in degrees from sensor to upright frames.
+   */
+  public Size select(final Size[] choices, final int sensorOrientation) {
+    final boolean rotated = sensorOrientation % 180 != 0;
+    final List<Size> covering = new ArrayList<>();
+    for (final Size choice : choices) {
+      final int uprightWidth = rotated ? choice.getHeight() : choice.getWidth();
+      final int uprightHeight = rotated ? choice.getWidth() : choice.getHeight();
+      if (uprightWidth >= modelInputSize.getWidth()
+          && uprightHeight >= modelInputSize.getHeight()) {
+        covering.add(choice);
+      }
+    }
+    if (covering.isEmpty()) {
+      LOGGER.w("No preview size covers the %s model input", modelInputSize);
+      selectedSize =
+          CameraConnectionFragment.chooseOptimalSize(
+              choices, fallbackSize.getWidth(), fallbackSize.getHeight());
+      return selectedSize;
+    }
+
+    final CameraConnectionFragment.CompareSizesByArea byArea =
+        new CameraConnectionFragment.CompareSizesByArea();
+    final Size largest = Collections.max(Arrays.asList(choices), byArea);
+    final List<Size> fullView = new ArrayList<>();
+    for (final Size size : covering) {
+      if (hasAspectRatio(size, largest)) {
+        fullView.add(size);
+      }
+    }
+    if (fullView.isEmpty()) {
+      LOGGER.w("No covering preview size has the %s aspect ratio", largest);
+    }
+    final Size bestSize = Collections.min(fullView.isEmpty() ? covering : fullView, byArea);
+    selectedSize = bestSize;
+    LOGGER.i(
+        "Selected preview size %s for %s model input at %d degrees",
+        bestSize, modelInputSize, sensorOrientation);
+    return bestSize;
+  }
+
+  /** Returns the size chosen by the last {@link #select} call, or null if there was none. */
+  public Size getSelectedSize() {
+    return selectedSize;
+  }
+
+  private static boolean hasAspectRatio(final Size size, final Size reference) {
+    final long sizeCross = (long) size.getWidth() * reference.getHeight();
+    final long referenceCross = (long) reference.getWidth() * size.getHeight();
+    return Math.abs(sizeCross - referenceCross) <= ASPECT_RATIO_TOLERANCE * referenceCross;
+  }
+}
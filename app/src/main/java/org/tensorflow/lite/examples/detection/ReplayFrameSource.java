@@ -0,0 +1,201 @@
+/*
+ * Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import java.util.List;
+import org.tensorflow.lite.examples.detection.env.Logger;
+import org.tensorflow.lite.examples.detection.env.YuvFrameFile;
+
+/**
+ * Feeds recorded frames from a {@link YuvFrameFile} to a listener on a dedicated thread, in place
+ * of a camera, so that the pipeline can be benchmarked on identical input and without camera
+ * hardware. Frames are delivered either at their recorded rate, dropping those that arrive while
+ * the listener is busy as a camera would, or back to back, waiting for the listener to take every
+ * frame so that each replay processes the same frames.
+ */
+public class ReplayFrameSource {
+  private static final Logger LOGGER = new Logger();
+
+  /** Receives the replayed frames on the replay thread. */
+  public interface Listener {
+    /**
+     * Processes {@code frame}, whose planes stay valid after this returns. Returns false if the
+     * frame was not taken because the previous one is still being processed. At maximum rate the
+     * frame is then offered again after the next {@link ReplayFrameSource#signalReady()}.
+     */
+    boolean onFrame(YuvFrameFile.Frame frame);
+
+    /** Called on the replay thread once all frames have been delivered. */
+    void onReplayFinished(Stats stats);
+  }
+
+  /** Throughput of one replay. */
+  public static class Stats {
+    public final int framesDelivered;
+    // Always 0 at maximum rate.
+    public final int framesDropped;
+    public final long elapsedNs;
+    // Total time spent in Listener.onFrame(), i.e. conversion and preprocessing.
+    public final long frameProcessingNs;
+
+    Stats(int framesDelivered, int framesDropped, long elapsedNs, long frameProcessingNs) {
+      this.framesDelivered = framesDelivered;
+      this.framesDropped = framesDropped;
+      this.elapsedNs = elapsedNs;
+      this.frameProcessingNs = frameProcessingNs;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%d frames (%d dropped) in %.1f ms: %.1f fps, %.2f ms per frame in preprocessing",
+          framesDelivered,
+          framesDropped,
+          elapsedNs / 1e6,
+          framesDelivered * 1e9 / Math.max(1, elapsedNs),
+          frameProcessingNs / 1e6 / Math.max(1, framesDelivered));
+    }
+  }
+
+  private final List<YuvFrameFile.Frame> frames;
+  private final boolean maxRate;
+  private final Listener listener;
+  private HandlerThread replayThread;
+  private volatile boolean stopped;
+
+  // Set by signalReady(), and cleared before each offer of a frame, so that a signal arriving
+  // while a frame is being offered is not lost.
+  private final Object readyLock = new Object();
+  private boolean ready;
+
+  /**
+   * @param maxRate Whether to deliver each frame as soon as the listener takes it, rather than at
+   *     the recorded timestamps.
+   */
+  public ReplayFrameSource(
+      final List<YuvFrameFile.Frame> frames, final boolean maxRate, final Listener listener) {
+    if (frames.isEmpty()) {
+      throw new IllegalArgumentException("Nothing to replay");
+    }
+    this.frames = frames;
+    this.maxRate = maxRate;
+    this.listener = listener;
+  }
+
+  public YuvFrameFile.Frame getFirstFrame() {
+    return frames.get(0);
+  }
+
+  /** Starts replaying from the first frame. */
+  public synchronized void start() {
+    stop();
+    stopped = false;
+    replayThread = new HandlerThread("ReplayFrames");
+    replayThread.start();
+    new Handler(replayThread.getLooper()).post(this::replay);
+  }
+
+  /** Stops the replay, waiting for the frame being delivered, if any. */
+  public synchronized void stop() {
+    if (replayThread == null) {
+      return;
+    }
+    stopped = true;
+    signalReady();
+    replayThread.quitSafely();
+    try {
+      replayThread.join();
+    } catch (final InterruptedException e) {
+      LOGGER.e(e, "Exception!");
+      Thread.currentThread().interrupt();
+    }
+    replayThread = null;
+  }
+
+  /**
+   * Signals that the listener may take a frame now, e.g. because it finished processing one. At
+   * maximum rate, a frame the listener did not take is offered again.
+   */
+  public void signalReady() {
+    synchronized (readyLock) {
+      ready = true;
+      readyLock.notifyAll();
+    }
+  }
+
+  private void replay() {
+    LOGGER.i("Replaying %d frames at %s rate", frames.size(), maxRate ? "maximum" : "recorded");
+    final long firstTimestampNs = frames.get(0).timestampNs;
+    final long startNs = SystemClock.elapsedRealtimeNanos();
+    int delivered = 0;
+    int dropped = 0;
+    long processingNs = 0;
+    for (final YuvFrameFile.Frame frame : frames) {
+      if (stopped) {
+        return;
+      }
+      if (!maxRate) {
+        final long delayMs =
+            (startNs + frame.timestampNs - firstTimestampNs - SystemClock.elapsedRealtimeNanos())
+                / 1000000;
+        if (delayMs > 0) {
+          SystemClock.sleep(delayMs);
+        }
+      }
+      while (true) {
+        synchronized (readyLock) {
+          ready = false;
+        }
+        final long frameStartNs = SystemClock.elapsedRealtimeNanos();
+        if (listener.onFrame(frame)) {
+          ++delivered;
+          processingNs += SystemClock.elapsedRealtimeNanos() - frameStartNs;
+          break;
+        }
+        if (!maxRate) {
+          ++dropped;
+          break;
+        }
+        if (!awaitReady()) {
+          return;
+        }
+      }
+    }
+    final Stats stats =
+        new Stats(delivered, dropped, SystemClock.elapsedRealtimeNanos() - startNs, processingNs);
+    LOGGER.i("Replayed %s", stats);
+    listener.onReplayFinished(stats);
+  }
+
+  /** Waits for {@link #signalReady()}. Returns false if the replay was stopped meanwhile. */
+  private boolean awaitReady() {
+    synchronized (readyLock) {
+      while (!ready && !stopped) {
+        try {
+          readyLock.wait();
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return false;
+        }
+      }
+    }
+    return !stopped;
+  }
+}
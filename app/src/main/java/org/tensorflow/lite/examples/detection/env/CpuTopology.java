@@ -0,0 +1,241 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.env;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * The CPU cores of the device and how fast each is, read from sysfs. On big.LITTLE devices, work
+ * sized to the big cores finishes sooner than work spread over all of them, as the LITTLE ones hold
+ * the rest back.
+ *
+ * <p>Each core's capacity is its {@code cpu_capacity}, or its maximum frequency on kernels without
+ * it. Cores are grouped into clusters by the frequency domain they share, and cores whose domain is
+ * unknown form a single cluster.
+ */
+public class CpuTopology {
+  public static final File SYSFS_CPU_ROOT = new File("/sys/devices/system/cpu");
+
+  // Cores at least this fraction of the fastest core's capacity count as big.
+  private static final float BIG_CAPACITY_FRACTION = 0.5f;
+  private static final Pattern CPU_DIR = Pattern.compile("cpu[0-9]+");
+
+  // Capacity of each core by number, or 0 where unknown.
+  private final int[] capacities;
+  // Cluster of each core, numbered from 0 in order of the cluster's first core.
+  private final int[] clusters;
+  private final int clusterCount;
+  private final int bigCoreCount;
+
+  /**
+   * @param frequencyOnly Whether the capacities are maximum frequencies, as no core has a {@code
+   *     cpu_capacity}.
+   */
+  private CpuTopology(final int[] capacities, final int[] clusters, final boolean frequencyOnly) {
+    this.capacities = capacities;
+    this.clusters = clusters;
+    int maxCluster = -1;
+    int maxCapacity = 0;
+    for (int cpu = 0; cpu < capacities.length; ++cpu) {
+      maxCluster = Math.max(maxCluster, clusters[cpu]);
+      maxCapacity = Math.max(maxCapacity, capacities[cpu]);
+    }
+    clusterCount = maxCluster + 1;
+    int bigCores = 0;
+    if (frequencyOnly && clusterCount > 1) {
+      // LITTLE cores also do less per cycle, so their frequency can be well over half the big
+      // cores' one. The slowest cluster is taken as LITTLE instead, however close it is.
+      final int[] clusterCapacities = new int[clusterCount];
+      for (int cpu = 0; cpu < capacities.length; ++cpu) {
+        clusterCapacities[clusters[cpu]] =
+            Math.max(clusterCapacities[clusters[cpu]], capacities[cpu]);
+      }
+      int minClusterCapacity = Integer.MAX_VALUE;
+      for (final int capacity : clusterCapacities) {
+        minClusterCapacity = Math.min(minClusterCapacity, capacity);
+      }
+      for (int cpu = 0; cpu < capacities.length; ++cpu) {
+        if (clusterCapacities[clusters[cpu]] > minClusterCapacity) {
+          ++bigCores;
+        }
+      }
+    }
+    if (bigCores == 0) {
+      for (final int capacity : capacities) {
+        // Without any capacities, every core counts as big.
+        if (capacity >= maxCapacity * BIG_CAPACITY_FRACTION) {
+          ++bigCores;
+        }
+      }
+    }
+    bigCoreCount = bigCores;
+  }
+
+  /** Reads the topology of this device. */
+  public static CpuTopology probe() {
+    return probe(SYSFS_CPU_ROOT);
+  }
+
+  /**
+   * Reads the topology from {@code root}, laid out as {@code /sys/devices/system/cpu}. Anything
+   * missing is treated as unknown, and without any cores this falls back to the number of
+   * available processors, all alike.
+   */
+  public static CpuTopology probe(final File root) {
+    int numCores = 0;
+    final String[] names = root.list();
+    if (names != null) {
+      for (final String name : names) {
+        if (CPU_DIR.matcher(name).matches()) {
+          numCores = Math.max(numCores, Integer.parseInt(name.substring(3)) + 1);
+        }
+      }
+    }
+    if (numCores == 0) {
+      final int processors = Runtime.getRuntime().availableProcessors();
+      return new CpuTopology(new int[processors], new int[processors], false);
+    }
+
+    final int[] capacities = new int[numCores];
+    final int[] clusters = new int[numCores];
+    // Cluster numbers by the first core of each frequency domain, in order.
+    final TreeMap<Integer, Integer> clusterByFirstCore = new TreeMap<>();
+    final int[] firstCores = new int[numCores];
+    // Cores with an unknown frequency domain share the cluster of the first of them.
+    int firstUnknownCore = -1;
+    boolean frequencyOnly = true;
+    for (int cpu = 0; cpu < numCores; ++cpu) {
+      final File cpuDir = new File(root, "cpu" + cpu);
+      capacities[cpu] = readInt(new File(cpuDir, "cpu_capacity"));
+      if (capacities[cpu] == 0) {
+        capacities[cpu] = readInt(new File(cpuDir, "cpufreq/cpuinfo_max_freq"));
+      } else {
+        frequencyOnly = false;
+      }
+      firstCores[cpu] = getFirstCpu(readLine(new File(cpuDir, "cpufreq/related_cpus")));
+      if (firstCores[cpu] < 0) {
+        if (firstUnknownCore < 0) {
+          firstUnknownCore = cpu;
+        }
+        firstCores[cpu] = firstUnknownCore;
+      }
+      clusterByFirstCore.put(firstCores[cpu], 0);
+    }
+    int cluster = 0;
+    for (final Integer firstCore : clusterByFirstCore.keySet()) {
+      clusterByFirstCore.put(firstCore, cluster++);
+    }
+    for (int cpu = 0; cpu < numCores; ++cpu) {
+      clusters[cpu] = clusterByFirstCore.get(firstCores[cpu]);
+    }
+    return new CpuTopology(capacities, clusters, frequencyOnly);
+  }
+
+  public int getCoreCount() {
+    return capacities.length;
+  }
+
+  public int getClusterCount() {
+    return clusterCount;
+  }
+
+  /** Returns the capacity of core {@code cpu}, or 0 if unknown. */
+  public int getCapacity(final int cpu) {
+    return capacities[cpu];
+  }
+
+  /** Returns the cluster of core {@code cpu}, numbered from 0 in order of their first cores. */
+  public int getCluster(final int cpu) {
+    return clusters[cpu];
+  }
+
+  /**
+   * Returns the number of cores within a factor of two of the fastest one's capacity, or of all
+   * cores if their capacities are unknown. When only frequencies are known, the cores outside the
+   * slowest cluster count instead, if there are several clusters.
+   */
+  public int getBigCoreCount() {
+    return bigCoreCount;
+  }
+
+  /** Returns whether some cores are slower than others, as on big.LITTLE devices. */
+  public boolean isHeterogeneous() {
+    return bigCoreCount < capacities.length;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        Locale.US,
+        "%d cores in %d clusters, %d big, capacities %s",
+        capacities.length,
+        clusterCount,
+        bigCoreCount,
+        Arrays.toString(capacities));
+  }
+
+  /**
+   * Returns the lowest core in a sysfs CPU list such as "0 1 2 3" or "4-7", or -1 if there is
+   * none.
+   */
+  private static int getFirstCpu(final String cpuList) {
+    if (cpuList == null) {
+      return -1;
+    }
+    int first = Integer.MAX_VALUE;
+    for (final String range : cpuList.trim().split("[\\s,]+")) {
+      if (range.isEmpty()) {
+        continue;
+      }
+      final int dash = range.indexOf('-');
+      try {
+        first = Math.min(first, Integer.parseInt(dash < 0 ? range : range.substring(0, dash)));
+      } catch (final NumberFormatException e) {
+        return -1;
+      }
+    }
+    return first == Integer.MAX_VALUE ? -1 : first;
+  }
+
+  /** Returns the integer in {@code file}, or 0 if it is missing or malformed. */
+  private static int readInt(final File file) {
+    final String line = readLine(file);
+    if (line == null) {
+      return 0;
+    }
+    try {
+      return Integer.parseInt(line.trim());
+    } catch (final NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /** Returns the first line of {@code file}, or null if it cannot be read. */
+  private static String readLine(final File file) {
+    try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+      return reader.readLine();
+    } catch (final IOException e) {
+      return null;
+    }
+  }
+}
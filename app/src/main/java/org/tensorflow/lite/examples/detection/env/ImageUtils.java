@@ -17,9 +17,11 @@ package org.tensorflow.lite.examples.detection.env;
 
 import android.graphics.Bitmap;
 import android.graphics.Matrix;
+import android.graphics.Rect;
 import android.os.Environment;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
 
 /** Utility class for manipulating images. */
 public class ImageUtils {
@@ -30,6 +32,45 @@ public class ImageUtils {
   @SuppressWarnings("unused")
   private static final Logger LOGGER = new Logger();
 
+  // Lookup tables for the fixed point YUV2RGB() kernel, indexed by the raw 8-bit sample. Each
+  // entry holds one term of the per-channel sums, so that a pixel costs three additions instead of
+  // six multiplications and three range checks.
+  private static final int[] Y_TABLE = new int[256];
+  private static final int[] R_V_TABLE = new int[256];
+  private static final int[] G_V_TABLE = new int[256];
+  private static final int[] G_U_TABLE = new int[256];
+  private static final int[] B_U_TABLE = new int[256];
+
+  // Clipping to [0, kMaxChannelValue] followed by the >> 10 normalization to eight bits is the
+  // same as clipping (sum >> 10) to [0, 255], so a small table indexed by the shifted sum replaces
+  // both. Y_TABLE is biased by CLAMP_OFFSET << 10 to keep the index non-negative.
+  private static final int CLAMP_OFFSET;
+  private static final int[] CLAMP_TABLE;
+
+  static {
+    for (int i = 0; i < 256; ++i) {
+      Y_TABLE[i] = 1192 * Math.max(i - 16, 0);
+      R_V_TABLE[i] = 1634 * (i - 128);
+      G_V_TABLE[i] = -833 * (i - 128);
+      G_U_TABLE[i] = -400 * (i - 128);
+      B_U_TABLE[i] = 2066 * (i - 128);
+    }
+
+    final int minSum =
+        Math.min(Math.min(R_V_TABLE[0], G_V_TABLE[255] + G_U_TABLE[255]), B_U_TABLE[0]);
+    final int maxSum =
+        Y_TABLE[255]
+            + Math.max(Math.max(R_V_TABLE[255], G_V_TABLE[0] + G_U_TABLE[0]), B_U_TABLE[255]);
+    CLAMP_OFFSET = -(minSum >> 10);
+    CLAMP_TABLE = new int[(maxSum >> 10) + CLAMP_OFFSET + 1];
+    for (int i = 0; i < CLAMP_TABLE.length; ++i) {
+      CLAMP_TABLE[i] = Math.min(Math.max(i - CLAMP_OFFSET, 0), 255);
+    }
+    for (int i = 0; i < 256; ++i) {
+      Y_TABLE[i] += CLAMP_OFFSET << 10;
+    }
+  }
+
   /**
    * Utility method to compute the allocated size in bytes of a YUV420SP image of the given
    * dimensions.
@@ -86,25 +127,55 @@ public class ImageUtils {
   }
 
   public static void convertYUV420SPToARGB8888(byte[] input, int width, int height, int[] output) {
+    convertYUV420SPToARGB8888(input, width, height, output, 0, 0, width, height);
+  }
+
+  /**
+   * Converts only the pixels of an NV21 frame inside {@code roi}, writing them to the same
+   * positions of the full-frame sized {@code output} and leaving the rest of it untouched. An odd
+   * {@code roi.left} is rounded down to keep chroma pairs together.
+   */
+  public static void convertYUV420SPToARGB8888(
+      byte[] input, int width, int height, Rect roi, int[] output) {
+    checkRoi(roi, width, height);
+    convertYUV420SPToARGB8888(
+        input, width, height, output, roi.left & ~1, roi.top, roi.right, roi.bottom);
+  }
+
+  /**
+   * Converts only the window [left, right) x [top, bottom) of the frame into the same positions of
+   * the output, for converting a region of interest or splitting a frame across threads. {@code
+   * left} must be even, so that pixel pairs sharing a chroma sample are never split.
+   */
+  static void convertYUV420SPToARGB8888(
+      byte[] input, int width, int height, int[] output, int left, int top, int right, int bottom) {
     final int frameSize = width * height;
-    for (int j = 0, yp = 0; j < height; j++) {
-      int uvp = frameSize + (j >> 1) * width;
-      int u = 0;
-      int v = 0;
-
-      for (int i = 0; i < width; i++, yp++) {
-        int y = 0xff & input[yp];
-        if ((i & 1) == 0) {
-          v = 0xff & input[uvp++];
-          u = 0xff & input[uvp++];
+    for (int j = top; j < bottom; j++) {
+      int yp = j * width + left;
+      int uvp = frameSize + (j >> 1) * width + left;
+
+      for (int i = left; i < right; i += 2) {
+        final int v = 0xff & input[uvp++];
+        final int u = 0xff & input[uvp++];
+        final int rv = R_V_TABLE[v];
+        final int guv = G_V_TABLE[v] + G_U_TABLE[u];
+        final int bu = B_U_TABLE[u];
+
+        output[yp] = tableYUV2RGB(Y_TABLE[0xff & input[yp]], rv, guv, bu);
+        yp++;
+        if (i + 1 < right) {
+          output[yp] = tableYUV2RGB(Y_TABLE[0xff & input[yp]], rv, guv, bu);
+          yp++;
         }
-
-        output[yp] = YUV2RGB(y, u, v);
       }
     }
   }
 
-  private static int YUV2RGB(int y, int u, int v) {
+  /**
+   * Reference per-pixel conversion. The converters in this class use the lookup tables below
+   * instead, and must stay bit-exact with this method.
+   */
+  static int YUV2RGB(int y, int u, int v) {
     // Adjust and check YUV values
     y = (y - 16) < 0 ? 0 : (y - 16);
     u -= 128;
@@ -128,6 +199,47 @@ public class ImageUtils {
     return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
   }
 
+  /**
+   * Table-driven equivalent of {@link #YUV2RGB}. The arguments are the already looked-up luma and
+   * chroma contributions, so that a chroma sample shared by two pixels is only resolved once.
+   */
+  private static int tableYUV2RGB(int y, int rv, int guv, int bu) {
+    return 0xff000000
+        | (CLAMP_TABLE[(y + rv) >> 10] << 16)
+        | (CLAMP_TABLE[(y + guv) >> 10] << 8)
+        | CLAMP_TABLE[(y + bu) >> 10];
+  }
+
+  public static void convertYUV420ToARGB8888(
+      byte[] yData,
+      byte[] uData,
+      byte[] vData,
+      int width,
+      int height,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      int[] out) {
+    convertYUV420ToARGB8888(
+        yData,
+        uData,
+        vData,
+        width,
+        yRowStride,
+        uvRowStride,
+        uvPixelStride,
+        out,
+        0,
+        0,
+        width,
+        height);
+  }
+
+  /**
+   * Region of interest version of {@link #convertYUV420ToARGB8888(byte[], byte[], byte[], int,
+   * int, int, int, int, int[])}, see {@link #convertYUV420SPToARGB8888(byte[], int, int, Rect,
+   * int[])}.
+   */
   public static void convertYUV420ToARGB8888(
       byte[] yData,
       byte[] uData,
@@ -137,16 +249,429 @@ public class ImageUtils {
       int yRowStride,
       int uvRowStride,
       int uvPixelStride,
+      Rect roi,
+      int[] out) {
+    checkRoi(roi, width, height);
+    convertYUV420ToARGB8888(
+        yData,
+        uData,
+        vData,
+        width,
+        yRowStride,
+        uvRowStride,
+        uvPixelStride,
+        out,
+        roi.left & ~1,
+        roi.top,
+        roi.right,
+        roi.bottom);
+  }
+
+  /**
+   * Converts only the window [left, right) x [top, bottom) of the frame into the same positions of
+   * the output, for converting a region of interest or splitting a frame across threads. {@code
+   * left} must be even, so that pixel pairs sharing a chroma sample are never split.
+   */
+  static void convertYUV420ToARGB8888(
+      byte[] yData,
+      byte[] uData,
+      byte[] vData,
+      int width,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      int[] out,
+      int left,
+      int top,
+      int right,
+      int bottom) {
+    for (int j = top; j < bottom; j++) {
+      int yp = j * width + left;
+      int pY = yRowStride * j;
+      int pUV = uvRowStride * (j >> 1);
+
+      for (int i = left; i < right; i += 2) {
+        final int uv_offset = pUV + (i >> 1) * uvPixelStride;
+        final int u = 0xff & uData[uv_offset];
+        final int v = 0xff & vData[uv_offset];
+        final int rv = R_V_TABLE[v];
+        final int guv = G_V_TABLE[v] + G_U_TABLE[u];
+        final int bu = B_U_TABLE[u];
+
+        out[yp++] = tableYUV2RGB(Y_TABLE[0xff & yData[pY + i]], rv, guv, bu);
+        if (i + 1 < right) {
+          out[yp++] = tableYUV2RGB(Y_TABLE[0xff & yData[pY + i + 1]], rv, guv, bu);
+        }
+      }
+    }
+  }
+
+  /**
+   * Memory layouts of the chroma planes of a YUV_420_888 image, each of which has its own
+   * conversion loop without the per-pixel {@code uvPixelStride} arithmetic of the generic one.
+   */
+  public enum YuvLayout {
+    /** Separate U and V planes with one byte per sample, as in I420 and YV12. */
+    PLANAR,
+    /**
+     * Interleaved U and V samples, as in NV12 and NV21. Camera2 exposes these as two plane
+     * buffers with a pixel stride of 2, so both orders are read the same way.
+     */
+    SEMI_PLANAR,
+    /** Any other pixel stride. */
+    GENERIC;
+
+    public static YuvLayout fromPixelStride(final int uvPixelStride) {
+      switch (uvPixelStride) {
+        case 1:
+          return PLANAR;
+        case 2:
+          return SEMI_PLANAR;
+        default:
+          return GENERIC;
+      }
+    }
+  }
+
+  /**
+   * Version of {@link #convertYUV420ToARGB8888(byte[], byte[], byte[], int, int, int, int, int,
+   * int[])} that reads the planes in place, for example straight from the direct buffers of a
+   * Camera2 {@code Image}, instead of requiring them to be copied into arrays first.
+   *
+   * @param layout The chroma layout, as given by {@link YuvLayout#fromPixelStride}, which selects
+   *     the conversion loop.
+   */
+  public static void convertYUV420ToARGB8888(
+      ByteBuffer yData,
+      ByteBuffer uData,
+      ByteBuffer vData,
+      int width,
+      int height,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      YuvLayout layout,
+      int[] out) {
+    convertYUV420ToARGB8888(
+        yData,
+        uData,
+        vData,
+        width,
+        yRowStride,
+        uvRowStride,
+        uvPixelStride,
+        layout,
+        out,
+        0,
+        0,
+        width,
+        height);
+  }
+
+  /**
+   * Region of interest version of {@link #convertYUV420ToARGB8888(ByteBuffer, ByteBuffer,
+   * ByteBuffer, int, int, int, int, int, YuvLayout, int[])}, see {@link
+   * #convertYUV420SPToARGB8888(byte[], int, int, Rect, int[])}.
+   */
+  public static void convertYUV420ToARGB8888(
+      ByteBuffer yData,
+      ByteBuffer uData,
+      ByteBuffer vData,
+      int width,
+      int height,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      YuvLayout layout,
+      Rect roi,
       int[] out) {
-    int yp = 0;
-    for (int j = 0; j < height; j++) {
+    checkRoi(roi, width, height);
+    convertYUV420ToARGB8888(
+        yData,
+        uData,
+        vData,
+        width,
+        yRowStride,
+        uvRowStride,
+        uvPixelStride,
+        layout,
+        out,
+        roi.left & ~1,
+        roi.top,
+        roi.right,
+        roi.bottom);
+  }
+
+  /**
+   * Converts only the window [left, right) x [top, bottom) of the frame into the same positions of
+   * the output, for converting a region of interest or splitting a frame across threads. {@code
+   * left} must be even, so that pixel pairs sharing a chroma sample are never split.
+   */
+  static void convertYUV420ToARGB8888(
+      ByteBuffer yData,
+      ByteBuffer uData,
+      ByteBuffer vData,
+      int width,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      YuvLayout layout,
+      int[] out,
+      int left,
+      int top,
+      int right,
+      int bottom) {
+    switch (layout) {
+      case PLANAR:
+        convertPlanarRows(
+            yData, uData, vData, width, yRowStride, uvRowStride, out, left, top, right, bottom);
+        break;
+      case SEMI_PLANAR:
+        convertSemiPlanarRows(
+            yData, uData, vData, width, yRowStride, uvRowStride, out, left, top, right, bottom);
+        break;
+      default:
+        convertGenericRows(
+            yData,
+            uData,
+            vData,
+            width,
+            yRowStride,
+            uvRowStride,
+            uvPixelStride,
+            out,
+            left,
+            top,
+            right,
+            bottom);
+        break;
+    }
+  }
+
+  static void checkRoi(final Rect roi, final int width, final int height) {
+    if (roi.left < 0 || roi.top < 0 || roi.right > width || roi.bottom > height) {
+      throw new IllegalArgumentException(
+          "Region " + roi.toShortString() + " exceeds the " + width + "x" + height + " frame");
+    }
+  }
+
+  private static void convertPlanarRows(
+      ByteBuffer yData,
+      ByteBuffer uData,
+      ByteBuffer vData,
+      int width,
+      int yRowStride,
+      int uvRowStride,
+      int[] out,
+      int left,
+      int top,
+      int right,
+      int bottom) {
+    for (int j = top; j < bottom; j++) {
+      int yp = j * width + left;
+      int pY = yRowStride * j + left;
+      int pUV = uvRowStride * (j >> 1) + (left >> 1);
+
+      for (int i = left; i < right; i += 2, pY += 2, pUV++) {
+        final int u = 0xff & uData.get(pUV);
+        final int v = 0xff & vData.get(pUV);
+        final int rv = R_V_TABLE[v];
+        final int guv = G_V_TABLE[v] + G_U_TABLE[u];
+        final int bu = B_U_TABLE[u];
+
+        out[yp++] = tableYUV2RGB(Y_TABLE[0xff & yData.get(pY)], rv, guv, bu);
+        if (i + 1 < right) {
+          out[yp++] = tableYUV2RGB(Y_TABLE[0xff & yData.get(pY + 1)], rv, guv, bu);
+        }
+      }
+    }
+  }
+
+  private static void convertSemiPlanarRows(
+      ByteBuffer yData,
+      ByteBuffer uData,
+      ByteBuffer vData,
+      int width,
+      int yRowStride,
+      int uvRowStride,
+      int[] out,
+      int left,
+      int top,
+      int right,
+      int bottom) {
+    for (int j = top; j < bottom; j++) {
+      int yp = j * width + left;
+      int pY = yRowStride * j + left;
+      int pUV = uvRowStride * (j >> 1) + left;
+
+      // Chroma advances in step with luma, as each pair of pixels shares two chroma bytes.
+      for (int i = left; i < right; i += 2, pY += 2, pUV += 2) {
+        final int u = 0xff & uData.get(pUV);
+        final int v = 0xff & vData.get(pUV);
+        final int rv = R_V_TABLE[v];
+        final int guv = G_V_TABLE[v] + G_U_TABLE[u];
+        final int bu = B_U_TABLE[u];
+
+        out[yp++] = tableYUV2RGB(Y_TABLE[0xff & yData.get(pY)], rv, guv, bu);
+        if (i + 1 < right) {
+          out[yp++] = tableYUV2RGB(Y_TABLE[0xff & yData.get(pY + 1)], rv, guv, bu);
+        }
+      }
+    }
+  }
+
+  private static void convertGenericRows(
+      ByteBuffer yData,
+      ByteBuffer uData,
+      ByteBuffer vData,
+      int width,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      int[] out,
+      int left,
+      int top,
+      int right,
+      int bottom) {
+    for (int j = top; j < bottom; j++) {
+      int yp = j * width + left;
       int pY = yRowStride * j;
       int pUV = uvRowStride * (j >> 1);
 
-      for (int i = 0; i < width; i++) {
-        int uv_offset = pUV + (i >> 1) * uvPixelStride;
+      for (int i = left; i < right; i += 2) {
+        final int uv_offset = pUV + (i >> 1) * uvPixelStride;
+        final int u = 0xff & uData.get(uv_offset);
+        final int v = 0xff & vData.get(uv_offset);
+        final int rv = R_V_TABLE[v];
+        final int guv = G_V_TABLE[v] + G_U_TABLE[u];
+        final int bu = B_U_TABLE[u];
+
+        out[yp++] = tableYUV2RGB(Y_TABLE[0xff & yData.get(pY + i)], rv, guv, bu);
+        if (i + 1 < right) {
+          out[yp++] = tableYUV2RGB(Y_TABLE[0xff & yData.get(pY + i + 1)], rv, guv, bu);
+        }
+      }
+    }
+  }
+
+  /**
+   * Converts a YUV420 frame from in-place plane buffers to ARGB while downscaling it by {@code
+   * factor} in each dimension, which must be even. Each output pixel is the box-filtered average of
+   * a factor x factor block of luma and the (factor / 2) x (factor / 2) chroma samples covering it,
+   * so the output has (width / factor) x (height / factor) pixels and the conversion reads each
+   * sample once instead of converting the full frame for a later downscale to discard.
+   */
+  public static void convertYUV420ToARGB8888Decimated(
+      ByteBuffer yData,
+      ByteBuffer uData,
+      ByteBuffer vData,
+      int width,
+      int height,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      int factor,
+      int[] out) {
+    checkDecimationFactor(factor);
+    final int chromaFactor = factor / 2;
+    final int lumaCount = factor * factor;
+    final int chromaCount = chromaFactor * chromaFactor;
+    final int outWidth = width / factor;
+    final int outHeight = height / factor;
+
+    for (int j = 0, op = 0; j < outHeight; j++) {
+      for (int i = 0; i < outWidth; i++) {
+        int ySum = 0;
+        for (int dy = 0, p = j * factor * yRowStride + i * factor;
+            dy < factor;
+            dy++, p += yRowStride) {
+          for (int dx = 0; dx < factor; dx++) {
+            ySum += 0xff & yData.get(p + dx);
+          }
+        }
+        int uSum = 0;
+        int vSum = 0;
+        for (int dy = 0, p = j * chromaFactor * uvRowStride + i * chromaFactor * uvPixelStride;
+            dy < chromaFactor;
+            dy++, p += uvRowStride) {
+          for (int dx = 0, q = p; dx < chromaFactor; dx++, q += uvPixelStride) {
+            uSum += 0xff & uData.get(q);
+            vSum += 0xff & vData.get(q);
+          }
+        }
+        out[op++] = averageYUV2RGB(ySum, lumaCount, uSum, chromaCount, vSum);
+      }
+    }
+  }
+
+  private static void checkDecimationFactor(final int factor) {
+    if (factor < 2 || (factor & 1) != 0) {
+      throw new IllegalArgumentException("Decimation factor must be even, got " + factor);
+    }
+  }
+
+  /** Converts the rounded averages of the given sample sums to an ARGB pixel. */
+  private static int averageYUV2RGB(int ySum, int lumaCount, int uSum, int chromaCount, int vSum) {
+    final int y = (ySum + lumaCount / 2) / lumaCount;
+    final int u = (uSum + chromaCount / 2) / chromaCount;
+    final int v = (vSum + chromaCount / 2) / chromaCount;
+    return tableYUV2RGB(Y_TABLE[y], R_V_TABLE[v], G_V_TABLE[v] + G_U_TABLE[u], B_U_TABLE[u]);
+  }
 
-        out[yp++] = YUV2RGB(0xff & yData[pY + i], 0xff & uData[uv_offset], 0xff & vData[uv_offset]);
+  /**
+   * Converts a YUV420 frame straight into a packed RGB888 image of size dstWidth x dstHeight,
+   * such as a model input tensor, without materializing the full-frame ARGB image. Each output
+   * pixel is nearest-neighbour sampled at the frame position that the dst-to-src transform maps
+   * its center to, which matches drawing the converted frame through the inverse transform onto
+   * an unfiltered Canvas. Positions outside the frame are clamped to its edge.
+   *
+   * <p>The planes are read with absolute indexing relative to index 0 of each buffer, so an
+   * interleaved NV21 buffer can be passed as three slices of the same array. The output is
+   * written starting at index 0 of {@code out}, three bytes per pixel in R, G, B order.
+   *
+   * @param dstToSrcValues The 9 values, as filled in by {@link Matrix#getValues}, of the affine
+   *     transform from output to frame coordinates, for example the inverse of {@link
+   *     #getTransformationMatrix}. Callers keep the array, so that converting a frame allocates
+   *     nothing.
+   */
+  public static void convertYUV420ToRGB888(
+      final ByteBuffer yData,
+      final ByteBuffer uData,
+      final ByteBuffer vData,
+      final int width,
+      final int height,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final float[] dstToSrcValues,
+      final int dstWidth,
+      final int dstHeight,
+      final ByteBuffer out) {
+    final float[] m = dstToSrcValues;
+    final float dxdx = m[Matrix.MSCALE_X];
+    final float dxdy = m[Matrix.MSKEW_X];
+    final float dydx = m[Matrix.MSKEW_Y];
+    final float dydy = m[Matrix.MSCALE_Y];
+
+    int op = 0;
+    for (int j = 0; j < dstHeight; j++) {
+      // Frame position of the center of the first pixel in this output row.
+      final float rowX = dxdx * 0.5f + dxdy * (j + 0.5f) + m[Matrix.MTRANS_X];
+      final float rowY = dydx * 0.5f + dydy * (j + 0.5f) + m[Matrix.MTRANS_Y];
+
+      for (int i = 0; i < dstWidth; i++) {
+        final float sx = rowX + dxdx * i;
+        final float sy = rowY + dydx * i;
+        final int x = Math.min(Math.max((int) Math.floor(sx), 0), width - 1);
+        final int y = Math.min(Math.max((int) Math.floor(sy), 0), height - 1);
+        final int uvOffset = (y >> 1) * uvRowStride + (x >> 1) * uvPixelStride;
+        final int u = 0xff & uData.get(uvOffset);
+        final int v = 0xff & vData.get(uvOffset);
+        final int yValue = Y_TABLE[0xff & yData.get(y * yRowStride + x)];
+
+        out.put(op++, (byte) CLAMP_TABLE[(yValue + R_V_TABLE[v]) >> 10]);
+        out.put(op++, (byte) CLAMP_TABLE[(yValue + G_V_TABLE[v] + G_U_TABLE[u]) >> 10]);
+        out.put(op++, (byte) CLAMP_TABLE[(yValue + B_U_TABLE[u]) >> 10]);
       }
     }
   }
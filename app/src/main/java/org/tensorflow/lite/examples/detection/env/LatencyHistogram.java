@@ -0,0 +1,82 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.env;
+
+import java.util.Arrays;
+
+/**
+ * A histogram of latencies in 1 ms buckets, from which percentiles can be read without keeping
+ * every sample. Latencies of {@link #MAX_LATENCY_MS} and above share the last bucket. Thread-safe.
+ */
+public class LatencyHistogram {
+  public static final int MAX_LATENCY_MS = 5000;
+
+  private final String name;
+  private final long[] counts = new long[MAX_LATENCY_MS + 1];
+  private long count;
+
+  public LatencyHistogram(final String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /** Adds a sample. Negative latencies, which only come from clock mismatches, are ignored. */
+  public synchronized void record(final long latencyNs) {
+    if (latencyNs < 0) {
+      return;
+    }
+    ++counts[(int) Math.min(MAX_LATENCY_MS, latencyNs / 1000000)];
+    ++count;
+  }
+
+  /**
+   * Returns the latency in whole milliseconds below which {@code percentile} percent of the samples
+   * fall, or -1 if there are none.
+   */
+  public synchronized int getPercentileMs(final double percentile) {
+    if (count == 0) {
+      return -1;
+    }
+    final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+    long seen = 0;
+    for (int i = 0; i < counts.length; ++i) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return i;
+      }
+    }
+    return MAX_LATENCY_MS;
+  }
+
+  public synchronized long getCount() {
+    return count;
+  }
+
+  public synchronized void reset() {
+    Arrays.fill(counts, 0);
+    count = 0;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format(
+        "%s: p50 %d ms, p95 %d ms, p99 %d ms (%d samples)",
+        name, getPercentileMs(50), getPercentileMs(95), getPercentileMs(99), count);
+  }
+}
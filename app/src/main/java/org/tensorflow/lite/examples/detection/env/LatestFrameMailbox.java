@@ -0,0 +1,78 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.env;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A lock-free single-slot mailbox between a frame producer and a consumer on another thread. The
+ * producer overwrites whatever frame is pending, and the overwritten frame is handed to the {@link
+ * Releaser} right away, so the consumer always takes the newest frame and stale frames never hold
+ * on to their buffers.
+ */
+public class LatestFrameMailbox<T> {
+  /** Takes back frames that were superseded before the consumer took them. */
+  public interface Releaser<T> {
+    void release(T frame);
+  }
+
+  private final AtomicReference<T> pending = new AtomicReference<>();
+  private final Releaser<T> releaser;
+
+  private final AtomicLong producedCount = new AtomicLong();
+  private final AtomicLong supersededCount = new AtomicLong();
+  private final AtomicLong consumedCount = new AtomicLong();
+
+  public LatestFrameMailbox(final Releaser<T> releaser) {
+    this.releaser = releaser;
+  }
+
+  /** Makes {@code frame} the pending frame, releasing the one it supersedes, if any. */
+  public void post(final T frame) {
+    producedCount.incrementAndGet();
+    final T superseded = pending.getAndSet(frame);
+    if (superseded != null) {
+      supersededCount.incrementAndGet();
+      releaser.release(superseded);
+    }
+  }
+
+  /** Takes the pending frame, or returns null if there is none. */
+  public T take() {
+    final T frame = pending.getAndSet(null);
+    if (frame != null) {
+      consumedCount.incrementAndGet();
+    }
+    return frame;
+  }
+
+  public boolean hasPending() {
+    return pending.get() != null;
+  }
+
+  public long getProducedCount() {
+    return producedCount.get();
+  }
+
+  public long getSupersededCount() {
+    return supersededCount.get();
+  }
+
+  public long getConsumedCount() {
+    return consumedCount.get();
+  }
+}
@@ -0,0 +1,256 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.env;
+
+import android.graphics.Rect;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the {@link ImageUtils} YUV converters on a small persistent pool of worker threads. The
+ * output is split into horizontal bands of an even number of rows, so that both luma rows sharing
+ * a chroma row ({@code j >> 1}) are always converted by the same worker.
+ */
+public class ParallelImageConverter {
+  private static final Logger LOGGER = new Logger();
+
+  // Bands shorter than this are not worth handing off to another thread.
+  private static final int MIN_ROWS_PER_BAND = 64;
+
+  private final ExecutorService executor;
+  private final int numThreads;
+
+  /**
+   * Creates a converter that splits each frame across up to {@code numThreads} threads. The
+   * calling thread converts one of the bands itself, so {@code numThreads - 1} workers are started.
+   */
+  public ParallelImageConverter(final int numThreads) {
+    this.numThreads = Math.max(1, numThreads);
+    if (this.numThreads > 1) {
+      executor = Executors.newFixedThreadPool(this.numThreads - 1, new WorkerThreadFactory());
+    } else {
+      executor = null;
+    }
+    LOGGER.i("Converting frames on %d threads", this.numThreads);
+  }
+
+  public int getNumThreads() {
+    return numThreads;
+  }
+
+  /** Parallel version of {@link ImageUtils#convertYUV420SPToARGB8888(byte[], int, int, int[])}. */
+  public void convertYUV420SPToARGB8888(
+      final byte[] input, final int width, final int height, final int[] output) {
+    convertYUV420SPToARGB8888(input, width, height, new Rect(0, 0, width, height), output);
+  }
+
+  /**
+   * Parallel version of {@link ImageUtils#convertYUV420SPToARGB8888(byte[], int, int, Rect,
+   * int[])}.
+   */
+  public void convertYUV420SPToARGB8888(
+      final byte[] input, final int width, final int height, final Rect roi, final int[] output) {
+    ImageUtils.checkRoi(roi, width, height);
+    final int left = roi.left & ~1;
+    final int right = roi.right;
+    runInBands(
+        roi.top,
+        roi.bottom,
+        (rowStart, rowEnd) ->
+            ImageUtils.convertYUV420SPToARGB8888(
+                input, width, height, output, left, rowStart, right, rowEnd));
+  }
+
+  /** Parallel version of {@link ImageUtils#convertYUV420ToARGB8888}. */
+  public void convertYUV420ToARGB8888(
+      final byte[] yData,
+      final byte[] uData,
+      final byte[] vData,
+      final int width,
+      final int height,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final int[] out) {
+    runInBands(
+        0,
+        height,
+        (rowStart, rowEnd) ->
+            ImageUtils.convertYUV420ToARGB8888(
+                yData,
+                uData,
+                vData,
+                width,
+                yRowStride,
+                uvRowStride,
+                uvPixelStride,
+                out,
+                0,
+                rowStart,
+                width,
+                rowEnd));
+  }
+
+  /** Parallel version of {@link ImageUtils#convertYUV420ToARGB8888} for in-place plane buffers. */
+  public void convertYUV420ToARGB8888(
+      final ByteBuffer yData,
+      final ByteBuffer uData,
+      final ByteBuffer vData,
+      final int width,
+      final int height,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final ImageUtils.YuvLayout layout,
+      final int[] out) {
+    convertYUV420ToARGB8888(
+        yData,
+        uData,
+        vData,
+        width,
+        height,
+        yRowStride,
+        uvRowStride,
+        uvPixelStride,
+        layout,
+        new Rect(0, 0, width, height),
+        out);
+  }
+
+  /**
+   * Parallel region of interest version of {@link ImageUtils#convertYUV420ToARGB8888} for in-place
+   * plane buffers.
+   */
+  public void convertYUV420ToARGB8888(
+      final ByteBuffer yData,
+      final ByteBuffer uData,
+      final ByteBuffer vData,
+      final int width,
+      final int height,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final ImageUtils.YuvLayout layout,
+      final Rect roi,
+      final int[] out) {
+    ImageUtils.checkRoi(roi, width, height);
+    final int left = roi.left & ~1;
+    final int right = roi.right;
+    runInBands(
+        roi.top,
+        roi.bottom,
+        (rowStart, rowEnd) ->
+            ImageUtils.convertYUV420ToARGB8888(
+                yData,
+                uData,
+                vData,
+                width,
+                yRowStride,
+                uvRowStride,
+                uvPixelStride,
+                layout,
+                out,
+                left,
+                rowStart,
+                right,
+                rowEnd));
+  }
+
+  /** Stops the worker threads. The converter must not be used afterwards. */
+  public void close() {
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+
+  /** Converts the output rows in [rowStart, rowEnd). */
+  interface RowBand {
+    void convert(int rowStart, int rowEnd);
+  }
+
+  /** Converts the rows in [top, bottom), splitting them into bands across the workers. */
+  void runInBands(final int top, final int bottom, final RowBand band) {
+    final int height = bottom - top;
+    final int numBands = Math.min(numThreads, height / MIN_ROWS_PER_BAND);
+    if (numBands <= 1) {
+      band.convert(top, bottom);
+      return;
+    }
+
+    // Round the band height up to an even number of rows, and start every band after the first on
+    // an even row, so that no chroma row is split between bands even when top is odd.
+    final int rowsPerBand = (((height + numBands - 1) / numBands) + 1) & ~1;
+    final int firstBandEnd = Math.min((top & ~1) + rowsPerBand, bottom);
+    final CountDownLatch done =
+        new CountDownLatch((bottom - firstBandEnd + rowsPerBand - 1) / rowsPerBand);
+    final AtomicReference<RuntimeException> error = new AtomicReference<>();
+    for (int rowStart = firstBandEnd; rowStart < bottom; rowStart += rowsPerBand) {
+      final int start = rowStart;
+      final int end = Math.min(rowStart + rowsPerBand, bottom);
+      executor.execute(
+          () -> {
+            try {
+              band.convert(start, end);
+            } catch (final RuntimeException e) {
+              error.compareAndSet(null, e);
+            } finally {
+              done.countDown();
+            }
+          });
+    }
+    try {
+      band.convert(top, firstBandEnd);
+    } finally {
+      // The workers write into the caller's output, so they must be done before it is reused, even
+      // if the caller's own band failed.
+      awaitUninterruptibly(done);
+    }
+    if (error.get() != null) {
+      throw error.get();
+    }
+  }
+
+  private static void awaitUninterruptibly(final CountDownLatch latch) {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        latch.await();
+        break;
+      } catch (final InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static class WorkerThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(final Runnable r) {
+      final Thread thread = new Thread(r, "ImageConverter-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
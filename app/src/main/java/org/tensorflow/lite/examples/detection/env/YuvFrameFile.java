@@ -0,0 +1,150 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.env;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A file of raw YUV_420_888 frames, read by memory-mapping it. The file starts with a {@link
+ * #HEADER_SIZE} byte header, followed by slotCount fixed-size slots that each hold one frame or
+ * are empty. All values are little-endian.
+ *
+ * <pre>
+ * Header: int magic, int version, int slotCount, int slotSize, then zero padding.
+ * Slot:   long sequence (0 if empty), long timestampNs, int width, int height, int rotation,
+ *         int yRowStride, int uvRowStride, int uvPixelStride, int yLength, int uLength,
+ *         int vLength, int padding, then the Y, U and V plane bytes.
+ * </pre>
+ *
+ * <p>Frames are ordered by sequence rather than by slot, so that a recorder can reuse the slots as
+ * a ring. Plane bytes are stored exactly as the camera delivered them, including row padding, so
+ * the strides apply to them unchanged.
+ */
+public final class YuvFrameFile {
+  static final int MAGIC = 0x46565559; // "YUVF"
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 64;
+  static final int SLOT_HEADER_SIZE = 56;
+
+  /** A frame whose planes are read in place from the mapped file. */
+  public static final class Frame {
+    public final long sequence;
+    public final long timestampNs;
+    public final int width;
+    public final int height;
+    public final int rotation;
+    public final int yRowStride;
+    public final int uvRowStride;
+    public final int uvPixelStride;
+    public final ByteBuffer yPlane;
+    public final ByteBuffer uPlane;
+    public final ByteBuffer vPlane;
+
+    private Frame(final ByteBuffer slot) {
+      sequence = slot.getLong(0);
+      timestampNs = slot.getLong(8);
+      width = slot.getInt(16);
+      height = slot.getInt(20);
+      rotation = slot.getInt(24);
+      yRowStride = slot.getInt(28);
+      uvRowStride = slot.getInt(32);
+      uvPixelStride = slot.getInt(36);
+      final int yLength = slot.getInt(40);
+      final int uLength = slot.getInt(44);
+      final int vLength = slot.getInt(48);
+      yPlane = slice(slot, SLOT_HEADER_SIZE, yLength);
+      uPlane = slice(slot, SLOT_HEADER_SIZE + yLength, uLength);
+      vPlane = slice(slot, SLOT_HEADER_SIZE + yLength + uLength, vLength);
+    }
+  }
+
+  private YuvFrameFile() {}
+
+  /** Returns the slot size needed for frames with planes of the given lengths. */
+  public static int getSlotSize(final int yLength, final int uLength, final int vLength) {
+    return SLOT_HEADER_SIZE + yLength + uLength + vLength;
+  }
+
+  /**
+   * Maps {@code file} and returns its frames in recording order. The frames stay valid as long as
+   * they are referenced, as the mapping does not depend on the file remaining open.
+   */
+  public static List<Frame> read(final File file) throws IOException {
+    final MappedByteBuffer buffer;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel channel = raf.getChannel()) {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+      throw new IOException(file + " is not a YUV frame file");
+    }
+    if (buffer.getInt(4) != VERSION) {
+      throw new IOException("Unsupported YUV frame file version " + buffer.getInt(4));
+    }
+    final int slotCount = buffer.getInt(8);
+    final int slotSize = buffer.getInt(12);
+    final long expectedSize = HEADER_SIZE + (long) slotCount * slotSize;
+    // No mapping is that large, and rejecting it keeps the slot offsets below in int range.
+    if (slotCount < 0 || slotSize < SLOT_HEADER_SIZE || expectedSize > Integer.MAX_VALUE) {
+      throw new IOException(
+          file + " has a corrupt header: " + slotCount + " slots of " + slotSize + " bytes");
+    }
+    if (expectedSize > buffer.capacity()) {
+      throw new IOException(
+          file + " is truncated: " + buffer.capacity() + " of " + expectedSize + " bytes");
+    }
+
+    final List<Frame> frames = new ArrayList<>();
+    for (int i = 0; i < slotCount; ++i) {
+      final ByteBuffer slot = slice(buffer, HEADER_SIZE + i * slotSize, slotSize);
+      if (slot.getLong(0) == 0) {
+        continue;
+      }
+      final long yLength = slot.getInt(40);
+      final long uLength = slot.getInt(44);
+      final long vLength = slot.getInt(48);
+      if (yLength < 0
+          || uLength < 0
+          || vLength < 0
+          || SLOT_HEADER_SIZE + yLength + uLength + vLength > slotSize) {
+        throw new IOException(
+            String.format(
+                "%s has a corrupt frame in slot %d: %d, %d and %d plane bytes in %d byte slots",
+                file, i, yLength, uLength, vLength, slotSize));
+      }
+      frames.add(new Frame(slot));
+    }
+    Collections.sort(frames, (a, b) -> Long.compare(a.sequence, b.sequence));
+    return frames;
+  }
+
+  private static ByteBuffer slice(final ByteBuffer buffer, final int offset, final int length) {
+    final ByteBuffer duplicate = buffer.duplicate();
+    duplicate.position(offset);
+    duplicate.limit(offset + length);
+    return duplicate.slice().order(ByteOrder.LITTLE_ENDIAN);
+  }
+}
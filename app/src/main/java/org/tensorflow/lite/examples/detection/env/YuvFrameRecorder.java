@@ -0,0 +1,200 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.env;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Records raw frames into a preallocated, memory-mapped {@link YuvFrameFile} used as a ring, so
+ * that the newest slotCount frames are kept. {@link #record} only copies the planes into one of a
+ * few pooled staging buffers on the calling thread, and the copy into the mapped file happens on a
+ * recorder thread. When the recorder falls behind, frames are skipped rather than blocking the
+ * caller.
+ *
+ * <p>The file is sized from the first recorded frame, and allocated and mapped on the recorder
+ * thread, so frames are skipped until it is ready.
+ */
+public class YuvFrameRecorder {
+  private static final Logger LOGGER = new Logger();
+
+  // Frames that may be waiting for the recorder thread at once.
+  private static final int NUM_STAGING_BUFFERS = 3;
+
+  private final File file;
+  private final int slotCount;
+  // Staging buffers are only added once the file is mapped, and slotSize is set before them.
+  private final Queue<ByteBuffer> freeStagingBuffers = new ConcurrentLinkedQueue<>();
+  private final HandlerThread recorderThread;
+  private final Handler recorderHandler;
+
+  // Only used by the thread calling record().
+  private boolean allocationRequested;
+  private volatile int slotSize;
+  // Only used by the recorder thread, and by close() once it has stopped.
+  private MappedByteBuffer mapping;
+  private long nextSequence = 1;
+  private volatile long recordedCount;
+  // Only written by the thread calling record().
+  private volatile long skippedCount;
+
+  /**
+   * Starts the recorder thread. {@code file} is created or truncated when the first frame is
+   * recorded, with {@code slotCount} slots large enough for planes of that frame's lengths.
+   */
+  public YuvFrameRecorder(final File file, final int slotCount) {
+    this.file = file;
+    this.slotCount = slotCount;
+    recorderThread = new HandlerThread("FrameRecorder");
+    recorderThread.start();
+    recorderHandler = new Handler(recorderThread.getLooper());
+  }
+
+  /** Allocates and maps the file for planes of the given lengths, on the recorder thread. */
+  private void allocate(final int yLength, final int uLength, final int vLength) {
+    final int slotSize = YuvFrameFile.getSlotSize(yLength, uLength, vLength);
+    final long fileSize = YuvFrameFile.HEADER_SIZE + (long) slotCount * slotSize;
+    if (fileSize > Integer.MAX_VALUE) {
+      LOGGER.e("Recording of %d bytes into %s is too large to map", fileSize, file);
+      return;
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        FileChannel channel = raf.getChannel()) {
+      // Truncating first zeroes every slot, marking them all empty.
+      raf.setLength(0);
+      raf.setLength(fileSize);
+      mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+    } catch (final IOException e) {
+      LOGGER.e(e, "Could not record to %s", file);
+      return;
+    }
+    mapping.order(ByteOrder.LITTLE_ENDIAN);
+    mapping.putInt(0, YuvFrameFile.MAGIC);
+    mapping.putInt(4, YuvFrameFile.VERSION);
+    mapping.putInt(8, slotCount);
+    mapping.putInt(12, slotSize);
+
+    this.slotSize = slotSize;
+    for (int i = 0; i < NUM_STAGING_BUFFERS; ++i) {
+      freeStagingBuffers.add(ByteBuffer.allocateDirect(slotSize).order(ByteOrder.LITTLE_ENDIAN));
+    }
+    LOGGER.i("Recording up to %d frames of %d bytes into %s", slotCount, slotSize, file);
+  }
+
+  /**
+   * Queues a frame for recording. The planes are copied before this returns, from their position
+   * to their limit, so the caller may release them right away.
+   *
+   * @return False if the frame was skipped because the file is not mapped yet, the recorder is
+   *     behind or the frame does not fit.
+   */
+  public boolean record(
+      final ByteBuffer yPlane,
+      final ByteBuffer uPlane,
+      final ByteBuffer vPlane,
+      final int width,
+      final int height,
+      final int rotation,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final long timestampNs) {
+    final int yLength = yPlane.remaining();
+    final int uLength = uPlane.remaining();
+    final int vLength = vPlane.remaining();
+    if (!allocationRequested) {
+      allocationRequested = true;
+      recorderHandler.post(() -> allocate(yLength, uLength, vLength));
+    }
+    final ByteBuffer staging = freeStagingBuffers.poll();
+    if (staging == null || YuvFrameFile.getSlotSize(yLength, uLength, vLength) > slotSize) {
+      if (staging != null) {
+        freeStagingBuffers.add(staging);
+      }
+      ++skippedCount;
+      return false;
+    }
+
+    // The sequence number is filled in by the recorder thread.
+    staging.clear();
+    staging.putLong(0);
+    staging.putLong(timestampNs);
+    staging.putInt(width);
+    staging.putInt(height);
+    staging.putInt(rotation);
+    staging.putInt(yRowStride);
+    staging.putInt(uvRowStride);
+    staging.putInt(uvPixelStride);
+    staging.putInt(yLength);
+    staging.putInt(uLength);
+    staging.putInt(vLength);
+    staging.putInt(0);
+    staging.put(yPlane.duplicate());
+    staging.put(uPlane.duplicate());
+    staging.put(vPlane.duplicate());
+    staging.flip();
+
+    recorderHandler.post(() -> writeSlot(staging));
+    return true;
+  }
+
+  private void writeSlot(final ByteBuffer staging) {
+    final long sequence = nextSequence++;
+    final int offset = YuvFrameFile.HEADER_SIZE + (int) ((sequence - 1) % slotCount) * slotSize;
+    // Mark the slot empty while it is overwritten, so that an interrupted recording never leaves
+    // a slot whose header and planes belong to different frames.
+    mapping.putLong(offset, 0);
+    final ByteBuffer slot = mapping.duplicate();
+    slot.position(offset + 8);
+    staging.position(8);
+    slot.put(staging);
+    mapping.putLong(offset, sequence);
+    freeStagingBuffers.add(staging);
+    ++recordedCount;
+  }
+
+  public long getRecordedCount() {
+    return recordedCount;
+  }
+
+  public long getSkippedCount() {
+    return skippedCount;
+  }
+
+  /** Writes the pending frames, flushes the file and stops the recorder thread. */
+  public void close() {
+    recorderThread.quitSafely();
+    try {
+      recorderThread.join();
+    } catch (final InterruptedException e) {
+      LOGGER.e(e, "Exception!");
+      Thread.currentThread().interrupt();
+    }
+    if (mapping != null) {
+      mapping.force();
+    }
+    LOGGER.i("Recorded %d frames into %s, skipped %d", recordedCount, file, skippedCount);
+  }
+}
@@ -25,7 +25,6 @@ import android.graphics.Paint.Join;
 import android.graphics.Paint.Style;
 import android.graphics.RectF;
 import android.text.TextUtils;
-import android.util.Pair;
 import android.util.TypedValue;
 import java.util.LinkedList;
 import java.util.List;
@@ -33,6 +32,7 @@ import java.util.Queue;
 import org.tensorflow.lite.examples.detection.env.BorderedText;
 import org.tensorflow.lite.examples.detection.env.ImageUtils;
 import org.tensorflow.lite.examples.detection.env.Logger;
+import org.tensorflow.lite.examples.detection.tflite.DetectionBatch;
 import org.tensorflow.lite.examples.detection.tflite.Detector.Recognition;
 
 /** A tracker that handles non-max suppression and matches existing objects to new detections. */
@@ -56,10 +56,19 @@ public class MultiBoxTracker {
     Color.parseColor("#AA33AA"),
     Color.parseColor("#0D0068")
   };
-  final List<Pair<Float, RectF>> screenRects = new LinkedList<Pair<Float, RectF>>();
+  // Screen rectangles and confidences of all the last results, for drawDebug(). Grown as needed.
+  private RectF[] screenRects = new RectF[0];
+  private float[] screenConfidences = new float[0];
+  private int screenRectCount;
   private final Logger logger = new Logger();
   private final Queue<Integer> availableColors = new LinkedList<Integer>();
-  private final List<TrackedRecognition> trackedObjects = new LinkedList<TrackedRecognition>();
+  // The first trackedCount entries are the tracked objects. They are reused for every result, so
+  // that tracking allocates nothing.
+  private final TrackedRecognition[] trackedObjects = new TrackedRecognition[COLORS.length];
+  private int trackedCount;
+  private final Matrix rgbFrameToScreen = new Matrix();
+  private final RectF resultRect = new RectF();
+  private final RectF trackedPos = new RectF();
   private final Paint boxPaint = new Paint();
   private final float textSizePx;
   private final BorderedText borderedText;
@@ -72,6 +81,9 @@ public class MultiBoxTracker {
     for (final int color : COLORS) {
       availableColors.add(color);
     }
+    for (int i = 0; i < trackedObjects.length; ++i) {
+      trackedObjects[i] = new TrackedRecognition();
+    }
 
     boxPaint.setColor(Color.RED);
     boxPaint.setStyle(Style.STROKE);
@@ -103,17 +115,35 @@ public class MultiBoxTracker {
     boxPaint.setAlpha(200);
     boxPaint.setStyle(Style.STROKE);
 
-    for (final Pair<Float, RectF> detection : screenRects) {
-      final RectF rect = detection.second;
+    for (int i = 0; i < screenRectCount; ++i) {
+      final RectF rect = screenRects[i];
       canvas.drawRect(rect, boxPaint);
-      canvas.drawText("" + detection.first, rect.left, rect.top, textPaint);
-      borderedText.drawText(canvas, rect.centerX(), rect.centerY(), "" + detection.first);
+      canvas.drawText("" + screenConfidences[i], rect.left, rect.top, textPaint);
+      borderedText.drawText(canvas, rect.centerX(), rect.centerY(), "" + screenConfidences[i]);
     }
   }
 
   public synchronized void trackResults(final List<Recognition> results, final long timestamp) {
     logger.i("Processing %d results from %d", results.size(), timestamp);
-    processResults(results);
+    beginResults(results.size());
+    for (final Recognition result : results) {
+      if (result.getLocation() == null) {
+        continue;
+      }
+      addResult(result.getLocation(), result.getConfidence(), result.getTitle());
+    }
+  }
+
+  /**
+   * Tracks the detections in {@code batch}, whose boxes must already be in frame coordinates,
+   * without allocating.
+   */
+  public synchronized void trackResults(final DetectionBatch batch, final long timestamp) {
+    beginResults(batch.count);
+    for (int i = 0; i < batch.count; ++i) {
+      batch.getBox(i, resultRect);
+      addResult(resultRect, batch.scores[i], batch.labels[i]);
+    }
   }
 
   private Matrix getFrameToCanvasMatrix() {
@@ -134,8 +164,9 @@ public class MultiBoxTracker {
             (int) (multiplier * (rotated ? frameWidth : frameHeight)),
             sensorOrientation,
             false);
-    for (final TrackedRecognition recognition : trackedObjects) {
-      final RectF trackedPos = new RectF(recognition.location);
+    for (int i = 0; i < trackedCount; ++i) {
+      final TrackedRecognition recognition = trackedObjects[i];
+      trackedPos.set(recognition.location);
 
       getFrameToCanvasMatrix().mapRect(trackedPos);
       boxPaint.setColor(recognition.color);
@@ -154,56 +185,46 @@ public class MultiBoxTracker {
     }
   }
 
-  private void processResults(final List<Recognition> results) {
-    final List<Pair<Float, Recognition>> rectsToTrack = new LinkedList<Pair<Float, Recognition>>();
-
-    screenRects.clear();
-    final Matrix rgbFrameToScreen = new Matrix(getFrameToCanvasMatrix());
-
-    for (final Recognition result : results) {
-      if (result.getLocation() == null) {
-        continue;
+  /** Clears the previous results before up to {@code numResults} new ones are added. */
+  private void beginResults(final int numResults) {
+    if (screenRects.length < numResults) {
+      final RectF[] grown = new RectF[numResults];
+      System.arraycopy(screenRects, 0, grown, 0, screenRects.length);
+      for (int i = screenRects.length; i < numResults; ++i) {
+        grown[i] = new RectF();
       }
-      final RectF detectionFrameRect = new RectF(result.getLocation());
-
-      final RectF detectionScreenRect = new RectF();
-      rgbFrameToScreen.mapRect(detectionScreenRect, detectionFrameRect);
-
-      logger.v(
-          "Result! Frame: " + result.getLocation() + " mapped to screen:" + detectionScreenRect);
+      screenRects = grown;
+      screenConfidences = new float[numResults];
+    }
+    screenRectCount = 0;
+    trackedCount = 0;
+    rgbFrameToScreen.set(getFrameToCanvasMatrix());
+  }
 
-      screenRects.add(new Pair<Float, RectF>(result.getConfidence(), detectionScreenRect));
+  private void addResult(
+      final RectF detectionFrameRect, final float confidence, final String title) {
+    rgbFrameToScreen.mapRect(screenRects[screenRectCount], detectionFrameRect);
+    screenConfidences[screenRectCount] = confidence;
+    ++screenRectCount;
 
-      if (detectionFrameRect.width() < MIN_SIZE || detectionFrameRect.height() < MIN_SIZE) {
-        logger.w("Degenerate rectangle! " + detectionFrameRect);
-        continue;
-      }
-
-      rectsToTrack.add(new Pair<Float, Recognition>(result.getConfidence(), result));
+    if (detectionFrameRect.width() < MIN_SIZE || detectionFrameRect.height() < MIN_SIZE) {
+      logger.w("Degenerate rectangle! " + detectionFrameRect);
+      return;
     }
-
-    trackedObjects.clear();
-    if (rectsToTrack.isEmpty()) {
-      logger.v("Nothing to track, aborting.");
+    if (trackedCount >= trackedObjects.length) {
       return;
     }
 
-    for (final Pair<Float, Recognition> potential : rectsToTrack) {
-      final TrackedRecognition trackedRecognition = new TrackedRecognition();
-      trackedRecognition.detectionConfidence = potential.first;
-      trackedRecognition.location = new RectF(potential.second.getLocation());
-      trackedRecognition.title = potential.second.getTitle();
-      trackedRecognition.color = COLORS[trackedObjects.size()];
-      trackedObjects.add(trackedRecognition);
-
-      if (trackedObjects.size() >= COLORS.length) {
-        break;
-      }
-    }
+    final TrackedRecognition trackedRecognition = trackedObjects[trackedCount];
+    trackedRecognition.detectionConfidence = confidence;
+    trackedRecognition.location.set(detectionFrameRect);
+    trackedRecognition.title = title;
+    trackedRecognition.color = COLORS[trackedCount];
+    ++trackedCount;
   }
 
   private static class TrackedRecognition {
-    RectF location;
+    final RectF location = new RectF();
     float detectionConfidence;
     int color;
     String title;
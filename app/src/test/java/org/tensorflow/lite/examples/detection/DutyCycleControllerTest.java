@@ -0,0 +1,77 @@
+/*
+ * Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for the gap lengths chosen by DutyCycleController. */
+@RunWith(JUnit4.class)
+public class DutyCycleControllerTest {
+  private static final long NO_RESUME_LATENCY = -1;
+
+  @Test
+  public void staticSceneGetsTheLongestGap() {
+    // The 4000 ms maximum, halved on a full battery.
+    assertEquals(2000, DutyCycleController.computeGapMs(0, 1, false, NO_RESUME_LATENCY));
+  }
+
+  @Test
+  public void gapShrinksWithSceneActivity() {
+    // 250 ms plus half of the remaining 3750 ms, halved on a full battery.
+    assertEquals(1062, DutyCycleController.computeGapMs(0.5f, 1, false, NO_RESUME_LATENCY));
+  }
+
+  @Test
+  public void busySceneDoesNotPause() {
+    // Half of the 250 ms minimum is too short to be worth pausing.
+    assertEquals(0, DutyCycleController.computeGapMs(1, 1, false, NO_RESUME_LATENCY));
+  }
+
+  @Test
+  public void gapGrowsAsTheBatteryRunsDown() {
+    assertEquals(2125, DutyCycleController.computeGapMs(0.5f, 0.5f, false, NO_RESUME_LATENCY));
+    assertEquals(1780, DutyCycleController.computeGapMs(0.75f, 0, false, NO_RESUME_LATENCY));
+  }
+
+  @Test
+  public void chargingDoesNotPause() {
+    assertEquals(0, DutyCycleController.computeGapMs(0, 0, true, NO_RESUME_LATENCY));
+    assertEquals(0, DutyCycleController.computeGapMs(0, 1, true, 100));
+  }
+
+  @Test
+  public void gapIsCappedAtTheMaximumBlindTime() {
+    // 6000 ms on an empty battery, but the camera may only be blind for 3000 ms.
+    assertEquals(3000, DutyCycleController.computeGapMs(0, 0, false, NO_RESUME_LATENCY));
+  }
+
+  @Test
+  public void resumeLatencyCountsTowardsTheBlindTime() {
+    assertEquals(2600, DutyCycleController.computeGapMs(0, 0, false, 400));
+    // Below the cap, the latency does not shorten the gap.
+    assertEquals(2000, DutyCycleController.computeGapMs(0, 1, false, 400));
+  }
+
+  @Test
+  public void slowResumeLeavesNoRoomToPause() {
+    assertEquals(0, DutyCycleController.computeGapMs(0, 0, false, 2800));
+  }
+}
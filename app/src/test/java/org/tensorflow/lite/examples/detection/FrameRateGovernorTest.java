@@ -0,0 +1,131 @@
+/*
+ * Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests the frame rate ranges FrameRateGovernor chooses, on a simulated clock. */
+@RunWith(JUnit4.class)
+public class FrameRateGovernorTest {
+  // Camera1 style ranges, in thousandths of a frame per second.
+  private static final int[] FIXED_30 = {30000, 30000};
+  private static final int[] WIDE_30 = {15000, 30000};
+  private static final int[] FIXED_10 = {10000, 10000};
+  private static final int[] WIDE_10 = {5000, 10000};
+  private static final List<int[]> RANGES = Arrays.asList(FIXED_30, WIDE_30, FIXED_10, WIDE_10);
+  private static final long EVALUATION_INTERVAL_MS = 1000;
+  // Slow enough that 10 fps keeps the detector busy: 1.5 * 1000 / 200 = 7.5 fps.
+  private static final long SLOW_INFERENCE_MS = 200;
+  private static final long FAST_INFERENCE_MS = 20;
+
+  private final FrameRateGovernor governor = new FrameRateGovernor();
+  private final List<int[]> changes = new ArrayList<>();
+  private long nowMs;
+
+  @Before
+  public void setUp() {
+    governor.attach(RANGES, 1000, changes::add, nowMs);
+  }
+
+  @Test
+  public void startsAtTheFastestWidestRange() {
+    assertArrayEquals(WIDE_30, governor.getFpsRange());
+  }
+
+  @Test
+  public void slowInferenceWithManyDropsLowersTheRate() {
+    evaluate(SLOW_INFERENCE_MS, 10);
+    // A single evaluation only proposes the change.
+    assertArrayEquals(WIDE_30, governor.getFpsRange());
+    assertTrue(changes.isEmpty());
+
+    evaluate(SLOW_INFERENCE_MS, 10);
+    assertArrayEquals(WIDE_10, governor.getFpsRange());
+    assertEquals(1, changes.size());
+    assertArrayEquals(WIDE_10, changes.get(0));
+  }
+
+  @Test
+  public void slowInferenceWithFewDropsKeepsTheRate() {
+    for (int i = 0; i < 5; ++i) {
+      evaluate(SLOW_INFERENCE_MS, 1);
+    }
+    assertArrayEquals(WIDE_30, governor.getFpsRange());
+    assertTrue(changes.isEmpty());
+  }
+
+  @Test
+  public void fasterInferenceRaisesTheRateWithoutDrops() {
+    evaluate(SLOW_INFERENCE_MS, 10);
+    evaluate(SLOW_INFERENCE_MS, 10);
+    assertArrayEquals(WIDE_10, governor.getFpsRange());
+
+    // Let the average settle on the new inference time before the evaluations.
+    for (int i = 0; i < 30; ++i) {
+      governor.onFrameDetected(FAST_INFERENCE_MS, nowMs);
+    }
+    evaluate(FAST_INFERENCE_MS, 1);
+    assertArrayEquals(WIDE_10, governor.getFpsRange());
+    evaluate(FAST_INFERENCE_MS, 1);
+    assertArrayEquals(WIDE_30, governor.getFpsRange());
+    assertEquals(2, changes.size());
+    assertArrayEquals(WIDE_30, changes.get(1));
+  }
+
+  @Test
+  public void reattachingStartsFromTheSustainedRate() {
+    evaluate(SLOW_INFERENCE_MS, 10);
+    governor.detach();
+    assertNull(governor.getFpsRange());
+
+    governor.attach(RANGES, 1000, changes::add, nowMs);
+    assertArrayEquals(WIDE_10, governor.getFpsRange());
+  }
+
+  @Test
+  public void noRangesMeansNoCamera() {
+    governor.attach(new ArrayList<int[]>(), 1000, changes::add, nowMs);
+    evaluate(SLOW_INFERENCE_MS, 10);
+    assertNull(governor.getFpsRange());
+    assertTrue(changes.isEmpty());
+  }
+
+  /**
+   * Advances the clock to the next evaluation, with {@code deliveredPerDetected} frames delivered
+   * for each of the two frames detected in the meantime.
+   */
+  private void evaluate(final long inferenceMs, final int deliveredPerDetected) {
+    for (int i = 0; i < 2; ++i) {
+      for (int j = 0; j < deliveredPerDetected; ++j) {
+        governor.onFrameDelivered();
+      }
+      nowMs += EVALUATION_INTERVAL_MS / 2;
+      governor.onFrameDetected(inferenceMs, nowMs);
+    }
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection.env;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for CpuTopology against fake sysfs trees. */
+@RunWith(JUnit4.class)
+public class CpuTopologyTest {
+
+  @Rule public final TemporaryFolder sysfs = new TemporaryFolder();
+
+  @Test
+  public void bigLittleUsesCapacities() throws Exception {
+    for (int cpu = 0; cpu < 8; ++cpu) {
+      write("cpu" + cpu + "/cpu_capacity", cpu < 4 ? "381" : "1024");
+      write("cpu" + cpu + "/cpufreq/related_cpus", cpu < 4 ? "0 1 2 3" : "4 5 6 7");
+    }
+    write("possible", "0-7");
+
+    final CpuTopology topology = CpuTopology.probe(sysfs.getRoot());
+
+    assertEquals(8, topology.getCoreCount());
+    assertEquals(2, topology.getClusterCount());
+    assertEquals(4, topology.getBigCoreCount());
+    assertTrue(topology.isHeterogeneous());
+    assertEquals(0, topology.getCluster(3));
+    assertEquals(1, topology.getCluster(4));
+    assertEquals(1024, topology.getCapacity(7));
+  }
+
+  @Test
+  public void threeClustersCountMiddleAndPrimeAsBig() throws Exception {
+    for (int cpu = 0; cpu < 8; ++cpu) {
+      final String capacity = cpu < 4 ? "284" : cpu < 7 ? "871" : "1024";
+      final String relatedCpus = cpu < 4 ? "0-3" : cpu < 7 ? "4-6" : "7";
+      write("cpu" + cpu + "/cpu_capacity", capacity);
+      write("cpu" + cpu + "/cpufreq/related_cpus", relatedCpus);
+    }
+
+    final CpuTopology topology = CpuTopology.probe(sysfs.getRoot());
+
+    assertEquals(3, topology.getClusterCount());
+    assertEquals(4, topology.getBigCoreCount());
+    assertEquals(2, topology.getCluster(7));
+  }
+
+  @Test
+  public void fallsBackToMaxFrequency() throws Exception {
+    for (int cpu = 0; cpu < 6; ++cpu) {
+      write("cpu" + cpu + "/cpufreq/cpuinfo_max_freq", cpu < 4 ? "1800000" : "2400000");
+      write("cpu" + cpu + "/cpufreq/related_cpus", cpu < 4 ? "0 1 2 3" : "4 5");
+    }
+
+    final CpuTopology topology = CpuTopology.probe(sysfs.getRoot());
+
+    // The slowest cluster is LITTLE, although its frequency is over half the big cores' one.
+    assertEquals(2, topology.getBigCoreCount());
+    assertTrue(topology.isHeterogeneous());
+    assertEquals(2, topology.getClusterCount());
+    assertEquals(2400000, topology.getCapacity(5));
+  }
+
+  @Test
+  public void equalFrequencyClustersAreAllBig() throws Exception {
+    for (int cpu = 0; cpu < 4; ++cpu) {
+      write("cpu" + cpu + "/cpufreq/cpuinfo_max_freq", "2000000");
+      write("cpu" + cpu + "/cpufreq/related_cpus", cpu < 2 ? "0-1" : "2-3");
+    }
+
+    final CpuTopology topology = CpuTopology.probe(sysfs.getRoot());
+
+    assertEquals(2, topology.getClusterCount());
+    assertEquals(4, topology.getBigCoreCount());
+    assertFalse(topology.isHeterogeneous());
+  }
+
+  @Test
+  public void frequencyWithoutDomainsUsesThreshold() throws Exception {
+    for (int cpu = 0; cpu < 4; ++cpu) {
+      write("cpu" + cpu + "/cpufreq/cpuinfo_max_freq", cpu < 2 ? "1800000" : "2400000");
+    }
+
+    final CpuTopology topology = CpuTopology.probe(sysfs.getRoot());
+
+    // With one cluster, there is no slowest cluster to tell apart.
+    assertEquals(1, topology.getClusterCount());
+    assertEquals(4, topology.getBigCoreCount());
+  }
+
+  @Test
+  public void symmetricWithoutCapacitiesCountsAllCoresAsBig() throws Exception {
+    for (int cpu = 0; cpu < 4; ++cpu) {
+      assertTrue(new File(sysfs.getRoot(), "cpu" + cpu).mkdirs());
+    }
+    sysfs.newFolder("cpufreq");
+    sysfs.newFolder("cpuidle");
+
+    final CpuTopology topology = CpuTopology.probe(sysfs.getRoot());
+
+    assertEquals(4, topology.getCoreCount());
+    assertEquals(4, topology.getBigCoreCount());
+    // Cores with unknown frequency domains share one cluster.
+    assertEquals(1, topology.getClusterCount());
+    assertEquals(0, topology.getCluster(3));
+    assertFalse(topology.isHeterogeneous());
+  }
+
+  @Test
+  public void malformedFilesAreUnknown() throws Exception {
+    write("cpu0/cpu_capacity", "fast");
+    write("cpu0/cpufreq/related_cpus", "");
+    write("cpu1/cpu_capacity", "512");
+    write("cpu1/cpufreq/related_cpus", "x-y");
+
+    final CpuTopology topology = CpuTopology.probe(sysfs.getRoot());
+
+    assertEquals(2, topology.getCoreCount());
+    assertEquals(0, topology.getCapacity(0));
+    assertEquals(1, topology.getBigCoreCount());
+    assertEquals(1, topology.getClusterCount());
+    assertEquals(0, topology.getCluster(1));
+  }
+
+  @Test
+  public void missingTreeFallsBackToAvailableProcessors() {
+    final CpuTopology topology = CpuTopology.probe(new File(sysfs.getRoot(), "missing"));
+
+    assertEquals(Runtime.getRuntime().availableProcessors(), topology.getCoreCount());
+    assertEquals(topology.getCoreCount(), topology.getBigCoreCount());
+  }
+
+  private void write(final String path, final String contents) throws IOException {
+    final File file = new File(sysfs.getRoot(), path);
+    assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+    try (Writer writer = new FileWriter(file)) {
+      writer.write(contents + "\n");
+    }
+  }
+}
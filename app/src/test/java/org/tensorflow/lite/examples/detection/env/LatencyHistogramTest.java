@@ -0,0 +1,102 @@
+/*
+ * Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection.env;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for the percentiles of LatencyHistogram. */
+@RunWith(JUnit4.class)
+public class LatencyHistogramTest {
+  private static final long NS_PER_MS = 1000000;
+
+  private final LatencyHistogram histogram = new LatencyHistogram("test");
+
+  @Test
+  public void emptyHistogramHasNoPercentiles() {
+    assertEquals(-1, histogram.getPercentileMs(50));
+    assertEquals(-1, histogram.getPercentileMs(99));
+    assertEquals(0, histogram.getCount());
+  }
+
+  @Test
+  public void percentileIsTheSampleAtItsRank() {
+    // 1 to 100 ms, so that the nth percentile is the nth sample.
+    for (int ms = 100; ms >= 1; --ms) {
+      histogram.record(ms * NS_PER_MS);
+    }
+    assertEquals(100, histogram.getCount());
+    assertEquals(1, histogram.getPercentileMs(0));
+    assertEquals(1, histogram.getPercentileMs(1));
+    assertEquals(50, histogram.getPercentileMs(50));
+    assertEquals(95, histogram.getPercentileMs(95));
+    assertEquals(99, histogram.getPercentileMs(99));
+    assertEquals(100, histogram.getPercentileMs(100));
+  }
+
+  @Test
+  public void rankIsRoundedUp() {
+    histogram.record(10 * NS_PER_MS);
+    histogram.record(20 * NS_PER_MS);
+    histogram.record(30 * NS_PER_MS);
+    // 50% of 3 samples is rank 2, and 95% is rank 3.
+    assertEquals(20, histogram.getPercentileMs(50));
+    assertEquals(30, histogram.getPercentileMs(95));
+  }
+
+  @Test
+  public void samplesAreTruncatedToWholeMilliseconds() {
+    histogram.record(NS_PER_MS - 1);
+    histogram.record(2 * NS_PER_MS + NS_PER_MS / 2);
+    assertEquals(0, histogram.getPercentileMs(50));
+    assertEquals(2, histogram.getPercentileMs(100));
+  }
+
+  @Test
+  public void longLatenciesAreClampedToTheLastBucket() {
+    histogram.record(5 * NS_PER_MS);
+    histogram.record((LatencyHistogram.MAX_LATENCY_MS + 1000) * NS_PER_MS);
+    histogram.record(Long.MAX_VALUE);
+    assertEquals(3, histogram.getCount());
+    assertEquals(5, histogram.getPercentileMs(10));
+    assertEquals(LatencyHistogram.MAX_LATENCY_MS, histogram.getPercentileMs(50));
+    assertEquals(LatencyHistogram.MAX_LATENCY_MS, histogram.getPercentileMs(100));
+  }
+
+  @Test
+  public void negativeSamplesAreIgnored() {
+    histogram.record(-1);
+    assertEquals(0, histogram.getCount());
+    assertEquals(-1, histogram.getPercentileMs(50));
+
+    histogram.record(7 * NS_PER_MS);
+    histogram.record(-5 * NS_PER_MS);
+    assertEquals(1, histogram.getCount());
+    assertEquals(7, histogram.getPercentileMs(0));
+  }
+
+  @Test
+  public void resetEmptiesTheHistogram() {
+    histogram.record(7 * NS_PER_MS);
+    histogram.reset();
+    assertEquals(0, histogram.getCount());
+    assertEquals(-1, histogram.getPercentileMs(50));
+  }
+}
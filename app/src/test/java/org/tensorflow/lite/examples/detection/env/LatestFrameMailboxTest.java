@@ -0,0 +1,110 @@
+/*
+ * Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection.env;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for LatestFrameMailbox. */
+@RunWith(JUnit4.class)
+public class LatestFrameMailboxTest {
+  private static final int FRAME_COUNT = 100000;
+
+  private final List<Integer> released = new ArrayList<>();
+  private final LatestFrameMailbox<Integer> mailbox = new LatestFrameMailbox<>(released::add);
+
+  @Test
+  public void emptyMailboxHasNothingToTake() {
+    assertFalse(mailbox.hasPending());
+    assertNull(mailbox.take());
+    assertEquals(0, mailbox.getConsumedCount());
+  }
+
+  @Test
+  public void takeReturnsThePostedFrameOnce() {
+    mailbox.post(1);
+    assertTrue(mailbox.hasPending());
+    assertEquals(Integer.valueOf(1), mailbox.take());
+    assertFalse(mailbox.hasPending());
+    assertNull(mailbox.take());
+    assertTrue(released.isEmpty());
+    assertEquals(1, mailbox.getProducedCount());
+    assertEquals(0, mailbox.getSupersededCount());
+    assertEquals(1, mailbox.getConsumedCount());
+  }
+
+  @Test
+  public void newerFramesSupersedeAndReleaseThePendingOne() {
+    mailbox.post(1);
+    mailbox.post(2);
+    mailbox.post(3);
+    assertEquals(2, released.size());
+    assertEquals(Integer.valueOf(1), released.get(0));
+    assertEquals(Integer.valueOf(2), released.get(1));
+    assertEquals(Integer.valueOf(3), mailbox.take());
+    assertEquals(3, mailbox.getProducedCount());
+    assertEquals(2, mailbox.getSupersededCount());
+    assertEquals(1, mailbox.getConsumedCount());
+  }
+
+  @Test
+  public void everyFrameIsEitherTakenOrReleasedAcrossThreads() throws InterruptedException {
+    final ConcurrentLinkedQueue<Integer> releasedFrames = new ConcurrentLinkedQueue<>();
+    final LatestFrameMailbox<Integer> sharedMailbox =
+        new LatestFrameMailbox<>(releasedFrames::add);
+    final Thread producer =
+        new Thread(
+            () -> {
+              for (int i = 0; i < FRAME_COUNT; ++i) {
+                sharedMailbox.post(i);
+              }
+            });
+    producer.start();
+
+    final boolean[] seen = new boolean[FRAME_COUNT];
+    int lastTaken = -1;
+    while (producer.isAlive() || sharedMailbox.hasPending()) {
+      final Integer frame = sharedMailbox.take();
+      if (frame != null) {
+        // The consumer only ever sees newer frames.
+        assertTrue(frame > lastTaken);
+        lastTaken = frame;
+        seen[frame] = true;
+      }
+    }
+    producer.join();
+    for (final Integer frame : releasedFrames) {
+      assertFalse(seen[frame]);
+      seen[frame] = true;
+    }
+    for (int i = 0; i < FRAME_COUNT; ++i) {
+      assertTrue("frame " + i, seen[i]);
+    }
+    assertEquals(FRAME_COUNT, sharedMailbox.getProducedCount());
+    assertEquals(
+        FRAME_COUNT, sharedMailbox.getConsumedCount() + sharedMailbox.getSupersededCount());
+  }
+}
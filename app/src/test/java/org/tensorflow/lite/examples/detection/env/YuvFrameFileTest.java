@@ -0,0 +1,197 @@
+/*
+ * Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection.env;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for YuvFrameFile against hand-built files. */
+@RunWith(JUnit4.class)
+public class YuvFrameFileTest {
+  private static final int SLOT_SIZE = YuvFrameFile.SLOT_HEADER_SIZE + 16;
+  private static final byte[] Y_PLANE = {1, 2, 3, 4, 5, 6, 7, 8};
+  private static final byte[] U_PLANE = {9, 10, 11};
+  private static final byte[] V_PLANE = {12, 13, 14};
+
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void framesAreReadInSequenceOrder() throws IOException {
+    // Slot 1 is empty, and the ring has wrapped so that slot 2 holds the oldest frame.
+    final ByteBuffer buffer = newFile(3);
+    putSlot(buffer, 0, 7, 2000);
+    putSlot(buffer, 2, 6, 1000);
+
+    final List<YuvFrameFile.Frame> frames = YuvFrameFile.read(write(buffer));
+
+    assertEquals(2, frames.size());
+    final YuvFrameFile.Frame first = frames.get(0);
+    assertEquals(6, first.sequence);
+    assertEquals(1000, first.timestampNs);
+    assertEquals(4, first.width);
+    assertEquals(2, first.height);
+    assertEquals(270, first.rotation);
+    assertEquals(5, first.yRowStride);
+    assertEquals(3, first.uvRowStride);
+    assertEquals(2, first.uvPixelStride);
+    assertArrayEquals(Y_PLANE, toArray(first.yPlane));
+    assertArrayEquals(U_PLANE, toArray(first.uPlane));
+    assertArrayEquals(V_PLANE, toArray(first.vPlane));
+    assertEquals(7, frames.get(1).sequence);
+    assertEquals(2000, frames.get(1).timestampNs);
+  }
+
+  @Test
+  public void emptyFileIsEmpty() throws IOException {
+    assertTrue(YuvFrameFile.read(write(newFile(2))).isEmpty());
+  }
+
+  @Test
+  public void wrongMagicIsRejected() throws IOException {
+    final ByteBuffer buffer = newFile(1);
+    buffer.putInt(0, 0x12345678);
+    assertRejected(buffer, "is not a YUV frame file");
+  }
+
+  @Test
+  public void shortHeaderIsRejected() throws IOException {
+    final ByteBuffer buffer = newFile(1);
+    buffer.limit(YuvFrameFile.HEADER_SIZE - 1);
+    assertRejected(buffer, "is not a YUV frame file");
+  }
+
+  @Test
+  public void unknownVersionIsRejected() throws IOException {
+    final ByteBuffer buffer = newFile(1);
+    buffer.putInt(4, YuvFrameFile.VERSION + 1);
+    assertRejected(buffer, "Unsupported YUV frame file version");
+  }
+
+  @Test
+  public void corruptHeaderIsRejected() throws IOException {
+    final ByteBuffer buffer = newFile(1);
+    buffer.putInt(12, YuvFrameFile.SLOT_HEADER_SIZE - 1);
+    assertRejected(buffer, "corrupt header");
+  }
+
+  @Test
+  public void slotsBeyondIntRangeAreRejected() throws IOException {
+    // 2^20 slots of 4 KiB add up to 4 GiB, whose slot offsets would overflow an int.
+    final ByteBuffer buffer = newFile(1);
+    buffer.putInt(8, 1 << 20);
+    buffer.putInt(12, 1 << 12);
+    assertRejected(buffer, "corrupt header");
+  }
+
+  @Test
+  public void truncatedFileIsRejected() throws IOException {
+    final ByteBuffer buffer = newFile(2);
+    putSlot(buffer, 0, 1, 0);
+    buffer.limit(buffer.capacity() - 1);
+    assertRejected(buffer, "is truncated");
+  }
+
+  @Test
+  public void planesLargerThanTheSlotAreRejected() throws IOException {
+    final ByteBuffer buffer = newFile(2);
+    putSlot(buffer, 1, 1, 0);
+    buffer.putInt(YuvFrameFile.HEADER_SIZE + SLOT_SIZE + 40, SLOT_SIZE);
+    assertRejected(buffer, "corrupt frame in slot 1");
+  }
+
+  @Test
+  public void negativePlaneLengthIsRejected() throws IOException {
+    final ByteBuffer buffer = newFile(1);
+    putSlot(buffer, 0, 1, 0);
+    buffer.putInt(YuvFrameFile.HEADER_SIZE + 44, -1);
+    assertRejected(buffer, "corrupt frame in slot 0");
+  }
+
+  /** Returns the bytes of a file with slotCount empty slots. */
+  private static ByteBuffer newFile(final int slotCount) {
+    final ByteBuffer buffer =
+        ByteBuffer.allocate(YuvFrameFile.HEADER_SIZE + slotCount * SLOT_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(0, YuvFrameFile.MAGIC);
+    buffer.putInt(4, YuvFrameFile.VERSION);
+    buffer.putInt(8, slotCount);
+    buffer.putInt(12, SLOT_SIZE);
+    return buffer;
+  }
+
+  private static void putSlot(
+      final ByteBuffer buffer, final int slot, final long sequence, final long timestampNs) {
+    final ByteBuffer slotBuffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    slotBuffer.position(YuvFrameFile.HEADER_SIZE + slot * SLOT_SIZE);
+    slotBuffer.putLong(sequence);
+    slotBuffer.putLong(timestampNs);
+    slotBuffer.putInt(4);
+    slotBuffer.putInt(2);
+    slotBuffer.putInt(270);
+    slotBuffer.putInt(5);
+    slotBuffer.putInt(3);
+    slotBuffer.putInt(2);
+    slotBuffer.putInt(Y_PLANE.length);
+    slotBuffer.putInt(U_PLANE.length);
+    slotBuffer.putInt(V_PLANE.length);
+    slotBuffer.putInt(0);
+    slotBuffer.put(Y_PLANE);
+    slotBuffer.put(U_PLANE);
+    slotBuffer.put(V_PLANE);
+  }
+
+  /** Writes the buffer up to its limit to a new file. */
+  private File write(final ByteBuffer buffer) throws IOException {
+    final File file = new File(folder.getRoot(), "frames.yuv");
+    try (OutputStream out = new FileOutputStream(file)) {
+      out.write(Arrays.copyOf(buffer.array(), buffer.limit()));
+    }
+    return file;
+  }
+
+  private void assertRejected(final ByteBuffer buffer, final String message) throws IOException {
+    final File file = write(buffer);
+    try {
+      YuvFrameFile.read(file);
+      fail("Expected " + file + " to be rejected");
+    } catch (final IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains(message));
+    }
+  }
+
+  private static byte[] toArray(final ByteBuffer buffer) {
+    final byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return bytes;
+  }
+}
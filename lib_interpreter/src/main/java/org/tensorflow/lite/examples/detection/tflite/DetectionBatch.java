@@ -0,0 +1,91 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import android.graphics.RectF;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Detection results as parallel primitive arrays, which a {@link Detector} refills in place on
+ * every call so that steady-state detection allocates nothing. Detection {@code i} has its box at
+ * {@code boxes[4 * i]} to {@code boxes[4 * i + 3]}, as left, top, right and bottom in model input
+ * pixels unless a caller maps them elsewhere.
+ */
+public final class DetectionBatch {
+  public final float[] boxes;
+  public final int[] classIds;
+  public final float[] scores;
+  /** Display name of each detection, shared with the detector's labels rather than copied. */
+  public final String[] labels;
+  /** Number of valid detections, at most {@link #getCapacity()}. */
+  public int count;
+
+  public DetectionBatch(final int capacity) {
+    boxes = new float[capacity * 4];
+    classIds = new int[capacity];
+    scores = new float[capacity];
+    labels = new String[capacity];
+  }
+
+  public int getCapacity() {
+    return scores.length;
+  }
+
+  /** Copies the box of detection {@code i} into {@code out}. */
+  public void getBox(final int i, final RectF out) {
+    out.set(boxes[4 * i], boxes[4 * i + 1], boxes[4 * i + 2], boxes[4 * i + 3]);
+  }
+
+  /** Sets the box of detection {@code i}, e.g. after mapping it into another coordinate space. */
+  public void setBox(final int i, final RectF box) {
+    setBox(i, box.left, box.top, box.right, box.bottom);
+  }
+
+  public void setBox(
+      final int i, final float left, final float top, final float right, final float bottom) {
+    boxes[4 * i] = left;
+    boxes[4 * i + 1] = top;
+    boxes[4 * i + 2] = right;
+    boxes[4 * i + 3] = bottom;
+  }
+
+  /** Sets detection {@code i} except for its box. */
+  public void set(final int i, final int classId, final String label, final float score) {
+    classIds[i] = classId;
+    labels[i] = label;
+    scores[i] = score;
+  }
+
+  /** Moves detection {@code from} to index {@code to}, for compacting the batch in place. */
+  public void move(final int from, final int to) {
+    System.arraycopy(boxes, 4 * from, boxes, 4 * to, 4);
+    classIds[to] = classIds[from];
+    labels[to] = labels[from];
+    scores[to] = scores[from];
+  }
+
+  /** Returns the detections as a new list of {@link Detector.Recognition}, for the list API. */
+  public List<Detector.Recognition> toRecognitions() {
+    final List<Detector.Recognition> recognitions = new ArrayList<>(count);
+    for (int i = 0; i < count; ++i) {
+      final RectF location = new RectF();
+      getBox(i, location);
+      recognitions.add(new Detector.Recognition("" + i, labels[i], scores[i], location));
+    }
+    return recognitions;
+  }
+}
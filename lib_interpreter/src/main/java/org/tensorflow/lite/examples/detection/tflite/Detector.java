@@ -17,22 +17,88 @@ package org.tensorflow.lite.examples.detection.tflite;
 
 import android.graphics.Bitmap;
 import android.graphics.RectF;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 /** Generic interface for interacting with different recognition engines. */
 public interface Detector {
   List<Recognition> recognizeImage(Bitmap bitmap);
 
+  /**
+   * Runs detection on an image that is already at the model input size, given as packed RGB888
+   * bytes in row-major order starting at index 0. This lets callers fill the model input directly
+   * instead of going through a Bitmap.
+   */
+  List<Recognition> recognizeImage(ByteBuffer rgbBytes);
+
+  /**
+   * Runs detection on {@code bitmap} and stores the results in {@code batch}, replacing its
+   * contents. Unlike the list variants, this allocates nothing once the detector is warmed up.
+   */
+  void recognizeImage(Bitmap bitmap, DetectionBatch batch);
+
+  /** Runs detection on packed RGB888 bytes, as {@link #recognizeImage(ByteBuffer)} does. */
+  void recognizeImage(ByteBuffer rgbBytes, DetectionBatch batch);
+
+  /**
+   * Runs detection on several images at once, returning one list of results per image in the order
+   * of {@code bitmaps}. Where the model supports it, the images share a single invocation, which
+   * keeps more cores busy than running them one at a time.
+   */
+  List<List<Recognition>> recognizeImages(List<Bitmap> bitmaps);
+
+  /**
+   * Runs detection on several images at once, as {@link #recognizeImages(List)} does, and stores
+   * the results of {@code bitmaps.get(i)} in {@code batches[i]}.
+   */
+  void recognizeImages(List<Bitmap> bitmaps, DetectionBatch[] batches);
+
   void enableStatLogging(final boolean debug);
 
   String getStatString();
 
   void close();
 
+  /**
+   * Sets the number of inference threads. The detector is rebuilt in the background and swapped in
+   * once ready, with detection carrying on with the previous settings until then.
+   */
   void setNumThreads(int numThreads);
 
+  /** Sets whether to use NNAPI, taking effect in the background as {@link #setNumThreads} does. */
   void setUseNNAPI(boolean isChecked);
 
+  /** Sets whether to use XNNPACK, taking effect as {@link #setNumThreads} does. */
+  void setUseXNNPACK(boolean useXNNPACK);
+
+  /**
+   * Sets all of the options above with a single rebuild, rather than one per setter, taking effect
+   * as {@link #setNumThreads} does.
+   */
+  void setOptions(int numThreads, boolean useXNNPACK, boolean useNNAPI);
+
+  /**
+   * Sets the listener told when a background rebuild for new settings fails, in which case the
+   * detector keeps running with its previous settings. Failures of rebuilds that a later setting
+   * has superseded are not reported. The listener is called on the rebuild thread.
+   */
+  void setRebuildListener(RebuildListener listener);
+
+  /**
+   * Times {@code numRuns} inferences on a blank input, with a temporary interpreter built with the
+   * given options, and returns the duration of each in nanoseconds. An untimed run warms the
+   * interpreter up first. This may be called from any thread, and the detector keeps running
+   * meanwhile.
+   *
+   * @throws UnsupportedOperationException If the detector cannot be configured with options.
+   */
+  long[] benchmark(int numThreads, boolean useXNNPACK, boolean useNNAPI, int numRuns);
+
+  /** Receives a failure to rebuild a detector with new settings. */
+  public interface RebuildListener {
+    void onRebuildFailed(RuntimeException e);
+  }
+
   /** An immutable result returned by a Detector describing what was recognized. */
   public class Recognition {
     /**
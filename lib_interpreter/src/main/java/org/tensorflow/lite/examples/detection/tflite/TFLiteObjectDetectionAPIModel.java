@@ -21,7 +21,6 @@ import android.content.Context;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
-import android.graphics.RectF;
 import android.os.Trace;
 import android.util.Log;
 import java.io.BufferedReader;
@@ -30,6 +29,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
@@ -37,6 +37,9 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
 import org.tensorflow.lite.Interpreter;
 import org.tensorflow.lite.support.metadata.MetadataExtractor;
 
@@ -67,26 +70,52 @@ public class TFLiteObjectDetectionAPIModel implements Detector {
   // Config values.
   private int inputSize;
   // Pre-allocated buffers.
-  private final List<String> labels = new ArrayList<>();
+  // Shared read-only by the detectors of a pool.
+  private List<String> labels;
   private int[] intValues;
-  // outputLocations: array of shape [Batchsize, NUM_DETECTIONS,4]
-  // contains the location of detected boxes
-  private float[][][] outputLocations;
-  // outputClasses: array of shape [Batchsize, NUM_DETECTIONS]
-  // contains the classes of detected boxes
-  private float[][] outputClasses;
-  // outputScores: array of shape [Batchsize, NUM_DETECTIONS]
-  // contains the scores of detected boxes
-  private float[][] outputScores;
-  // numDetections: array of shape [Batchsize]
-  // contains the number of detected boxes
-  private float[] numDetections;
+  private final Outputs outputs = new Outputs(1);
+  private final Object[] inputArray = new Object[1];
 
   private ByteBuffer imgData;
+  // Float view of imgData for float models.
+  private FloatBuffer imgFloats;
+  // Input values staged on the heap and copied into imgData in bulk, which is much cheaper than a
+  // relative put per value on a direct buffer.
+  private byte[] rgbValues;
+  private float[] floatValues;
+  // Normalized float input value for each 8-bit channel value.
+  private final float[] normalizedValues = new float[256];
+
+  // Input and outputs of recognizeImages(), for the batch size it was last called with.
+  private ByteBuffer batchInput;
+  private FloatBuffer batchFloats;
+  private Outputs batchOutputs;
+  // Batch size the interpreter input is currently resized to.
+  private int interpreterBatchSize = 1;
+  // Set once resizing the input turned out not to batch the outputs, as with models whose
+  // postprocessing only handles one image.
+  private boolean batchingUnsupported;
 
   private MappedByteBuffer tfLiteModel;
-  private Interpreter.Options tfLiteOptions;
   private Interpreter tfLite;
+  // Options of the latest interpreter requested, which may still be building.
+  private int numThreads;
+  private boolean useXNNPACK = true;
+  private boolean useNNAPI;
+  // Options of the latest interpreter built, which the requested ones fall back to if a rebuild
+  // fails.
+  private int builtNumThreads;
+  private boolean builtUseXNNPACK = true;
+  private boolean builtUseNNAPI;
+  // Counts the interpreters requested, so that a rebuild that has been overtaken by a later one is
+  // skipped or dropped rather than installed.
+  private int interpreterGeneration;
+  private boolean closed;
+  // Builds the rebuilt interpreters one at a time, started with the first rebuild.
+  private ExecutorService rebuildExecutor;
+  private RebuildListener rebuildListener;
+  // Interpreter built in the background to replace tfLite, which it does before the next run.
+  private final AtomicReference<Interpreter> pendingInterpreter = new AtomicReference<>();
 
   private TFLiteObjectDetectionAPIModel() {}
 
@@ -116,30 +145,63 @@ public class TFLiteObjectDetectionAPIModel implements Detector {
       final int inputSize,
       final boolean isQuantized)
       throws IOException {
-    final TFLiteObjectDetectionAPIModel d = new TFLiteObjectDetectionAPIModel();
+    return createPool(context, modelFilename, labelFilename, inputSize, isQuantized, 1, NUM_THREADS)
+        .get(0);
+  }
 
+  /**
+   * Initializes {@code numDetectors} detectors over a single mapping of the model, which split
+   * {@code numThreads} interpreter threads between them. Each detector must only be used from one
+   * thread at a time, but different detectors can run concurrently, which uses the cores better
+   * than one interpreter with more threads.
+   *
+   * @see #create(Context, String, String, int, boolean)
+   */
+  public static List<Detector> createPool(
+      final Context context,
+      final String modelFilename,
+      final String labelFilename,
+      final int inputSize,
+      final boolean isQuantized,
+      final int numDetectors,
+      final int numThreads)
+      throws IOException {
     MappedByteBuffer modelFile = loadModelFile(context.getAssets(), modelFilename);
     MetadataExtractor metadata = new MetadataExtractor(modelFile);
+    final List<String> labels = new ArrayList<>();
     try (BufferedReader br =
         new BufferedReader(
             new InputStreamReader(
                 metadata.getAssociatedFile(labelFilename), Charset.defaultCharset()))) {
       String line;
       while ((line = br.readLine()) != null) {
-        Log.w(TAG, line);
-        d.labels.add(line);
+        labels.add(line);
       }
     }
 
+    final int threadsPerDetector = Math.max(1, numThreads / numDetectors);
+    final List<Detector> detectors = new ArrayList<>(numDetectors);
+    for (int i = 0; i < numDetectors; ++i) {
+      detectors.add(create(modelFile, labels, inputSize, isQuantized, threadsPerDetector));
+    }
+    return detectors;
+  }
+
+  private static TFLiteObjectDetectionAPIModel create(
+      final MappedByteBuffer modelFile,
+      final List<String> labels,
+      final int inputSize,
+      final boolean isQuantized,
+      final int numThreads) {
+    final TFLiteObjectDetectionAPIModel d = new TFLiteObjectDetectionAPIModel();
+    d.labels = labels;
     d.inputSize = inputSize;
 
     try {
-      Interpreter.Options options = new Interpreter.Options();
-      options.setNumThreads(NUM_THREADS);
-      options.setUseXNNPACK(true);
-      d.tfLite = new Interpreter(modelFile, options);
+      d.numThreads = numThreads;
+      d.builtNumThreads = numThreads;
+      d.tfLite = new Interpreter(modelFile, newOptions(numThreads, true, false));
       d.tfLiteModel = modelFile;
-      d.tfLiteOptions = options;
     } catch (Exception e) {
       throw new RuntimeException(e);
     }
@@ -155,62 +217,212 @@ public class TFLiteObjectDetectionAPIModel implements Detector {
     d.imgData = ByteBuffer.allocateDirect(1 * d.inputSize * d.inputSize * 3 * numBytesPerChannel);
     d.imgData.order(ByteOrder.nativeOrder());
     d.intValues = new int[d.inputSize * d.inputSize];
-
-    d.outputLocations = new float[1][NUM_DETECTIONS][4];
-    d.outputClasses = new float[1][NUM_DETECTIONS];
-    d.outputScores = new float[1][NUM_DETECTIONS];
-    d.numDetections = new float[1];
+    d.rgbValues = new byte[d.inputSize * d.inputSize * 3];
+    if (!isQuantized) {
+      d.imgFloats = d.imgData.asFloatBuffer();
+      d.floatValues = new float[d.inputSize * d.inputSize * 3];
+      // Same expression as normalizing each value on the fly, so the input is bit-for-bit equal.
+      for (int i = 0; i < d.normalizedValues.length; ++i) {
+        d.normalizedValues[i] = (i - IMAGE_MEAN) / IMAGE_STD;
+      }
+    }
     return d;
   }
 
   @Override
   public List<Recognition> recognizeImage(final Bitmap bitmap) {
+    final DetectionBatch batch = new DetectionBatch(NUM_DETECTIONS);
+    recognizeImage(bitmap, batch);
+    return batch.toRecognitions();
+  }
+
+  @Override
+  public List<Recognition> recognizeImage(final ByteBuffer rgbBytes) {
+    final DetectionBatch batch = new DetectionBatch(NUM_DETECTIONS);
+    recognizeImage(rgbBytes, batch);
+    return batch.toRecognitions();
+  }
+
+  @Override
+  public void recognizeImage(final Bitmap bitmap, final DetectionBatch batch) {
     // Log this method so that it can be analyzed with systrace.
     Trace.beginSection("recognizeImage");
 
     Trace.beginSection("preprocessBitmap");
+    stageBitmap(bitmap);
+    if (isModelQuantized) {
+      imgData.rewind();
+      imgData.put(rgbValues);
+    } else {
+      imgFloats.rewind();
+      imgFloats.put(floatValues);
+    }
+    imgData.rewind();
+    Trace.endSection(); // preprocessBitmap
+
+    runInference(imgData, batch);
+    Trace.endSection(); // "recognizeImage"
+  }
+
+  @Override
+  public void recognizeImage(final ByteBuffer rgbBytes, final DetectionBatch batch) {
+    // Log this method so that it can be analyzed with systrace.
+    Trace.beginSection("recognizeImage");
+
+    final ByteBuffer input;
+    if (isModelQuantized) {
+      // Packed RGB bytes already are the input of a quantized model, so feed them as they are.
+      input = rgbBytes;
+    } else {
+      Trace.beginSection("preprocessBytes");
+      final ByteBuffer source = rgbBytes.duplicate();
+      source.rewind();
+      source.get(rgbValues);
+      for (int i = 0; i < rgbValues.length; ++i) {
+        floatValues[i] = normalizedValues[rgbValues[i] & 0xFF];
+      }
+      imgFloats.rewind();
+      imgFloats.put(floatValues);
+      Trace.endSection(); // preprocessBytes
+      input = imgData;
+    }
+    input.rewind();
+
+    runInference(input, batch);
+    Trace.endSection(); // "recognizeImage"
+  }
+
+  @Override
+  public List<List<Recognition>> recognizeImages(final List<Bitmap> bitmaps) {
+    final DetectionBatch[] batches = new DetectionBatch[bitmaps.size()];
+    for (int i = 0; i < batches.length; ++i) {
+      batches[i] = new DetectionBatch(NUM_DETECTIONS);
+    }
+    recognizeImages(bitmaps, batches);
+    final List<List<Recognition>> recognitions = new ArrayList<>(batches.length);
+    for (final DetectionBatch batch : batches) {
+      recognitions.add(batch.toRecognitions());
+    }
+    return recognitions;
+  }
+
+  @Override
+  public void recognizeImages(final List<Bitmap> bitmaps, final DetectionBatch[] batches) {
+    installPendingInterpreter();
+    final int batchSize = bitmaps.size();
+    if (batchSize == 1 || batchingUnsupported || !resizeInterpreter(batchSize)) {
+      for (int i = 0; i < batchSize; ++i) {
+        recognizeImage(bitmaps.get(i), batches[i]);
+      }
+      return;
+    }
+    // Log this method so that it can be analyzed with systrace.
+    Trace.beginSection("recognizeImages");
+
+    Trace.beginSection("preprocessBitmaps");
+    if (batchOutputs == null || batchOutputs.batchSize != batchSize) {
+      // The interpreter requires the input buffer to have exactly the size of the input tensor.
+      batchInput = ByteBuffer.allocateDirect(batchSize * imgData.capacity());
+      batchInput.order(ByteOrder.nativeOrder());
+      batchFloats = isModelQuantized ? null : batchInput.asFloatBuffer();
+      batchOutputs = new Outputs(batchSize);
+    }
+    batchInput.rewind();
+    if (!isModelQuantized) {
+      batchFloats.rewind();
+    }
+    for (final Bitmap bitmap : bitmaps) {
+      stageBitmap(bitmap);
+      if (isModelQuantized) {
+        batchInput.put(rgbValues);
+      } else {
+        batchFloats.put(floatValues);
+      }
+    }
+    batchInput.rewind();
+    Trace.endSection(); // preprocessBitmaps
+
+    inputArray[0] = batchInput;
+    batchOutputs.rewind();
+    Trace.beginSection("run");
+    tfLite.runForMultipleInputsOutputs(inputArray, batchOutputs.map);
+    Trace.endSection();
+
+    for (int i = 0; i < batchSize; ++i) {
+      decode(batchOutputs, i, batches[i]);
+    }
+    Trace.endSection(); // "recognizeImages"
+  }
+
+  /**
+   * Resizes the interpreter input to a batch of {@code batchSize} images, if it is not already.
+   * Returns false, and goes back to single images, if the model cannot batch its outputs.
+   */
+  private boolean resizeInterpreter(final int batchSize) {
+    if (interpreterBatchSize == batchSize) {
+      return true;
+    }
+    tfLite.resizeInput(0, new int[] {batchSize, inputSize, inputSize, 3});
+    tfLite.allocateTensors();
+    interpreterBatchSize = batchSize;
+    // numDetections has one entry per image when the model batches.
+    if (tfLite.getOutputTensor(3).shape()[0] != batchSize) {
+      Log.w(TAG, "Model does not support batches, running images one at a time");
+      batchingUnsupported = true;
+      resizeInterpreter(1);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Converts {@code bitmap} into the model input values in {@code rgbValues} for quantized models,
+   * or {@code floatValues} for float ones.
+   */
+  private void stageBitmap(final Bitmap bitmap) {
     // Preprocess the image data from 0-255 int to normalized float based
     // on the provided parameters.
     bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
 
-    imgData.rewind();
-    for (int i = 0; i < inputSize; ++i) {
-      for (int j = 0; j < inputSize; ++j) {
-        int pixelValue = intValues[i * inputSize + j];
-        if (isModelQuantized) {
-          // Quantized model
-          imgData.put((byte) ((pixelValue >> 16) & 0xFF));
-          imgData.put((byte) ((pixelValue >> 8) & 0xFF));
-          imgData.put((byte) (pixelValue & 0xFF));
-        } else { // Float model
-          imgData.putFloat((((pixelValue >> 16) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-          imgData.putFloat((((pixelValue >> 8) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-          imgData.putFloat(((pixelValue & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-        }
+    final int numPixels = inputSize * inputSize;
+    if (isModelQuantized) {
+      // Quantized model
+      for (int i = 0, k = 0; i < numPixels; ++i, k += 3) {
+        final int pixelValue = intValues[i];
+        rgbValues[k] = (byte) (pixelValue >> 16);
+        rgbValues[k + 1] = (byte) (pixelValue >> 8);
+        rgbValues[k + 2] = (byte) pixelValue;
+      }
+    } else { // Float model
+      for (int i = 0, k = 0; i < numPixels; ++i, k += 3) {
+        final int pixelValue = intValues[i];
+        floatValues[k] = normalizedValues[(pixelValue >> 16) & 0xFF];
+        floatValues[k + 1] = normalizedValues[(pixelValue >> 8) & 0xFF];
+        floatValues[k + 2] = normalizedValues[pixelValue & 0xFF];
       }
     }
-    Trace.endSection(); // preprocessBitmap
+  }
 
+  /** Runs the model on an already preprocessed input and decodes the detections into batch. */
+  private void runInference(final ByteBuffer input, final DetectionBatch batch) {
     // Copy the input data into TensorFlow.
     Trace.beginSection("feed");
-    outputLocations = new float[1][NUM_DETECTIONS][4];
-    outputClasses = new float[1][NUM_DETECTIONS];
-    outputScores = new float[1][NUM_DETECTIONS];
-    numDetections = new float[1];
-
-    Object[] inputArray = {imgData};
-    Map<Integer, Object> outputMap = new HashMap<>();
-    outputMap.put(0, outputLocations);
-    outputMap.put(1, outputClasses);
-    outputMap.put(2, outputScores);
-    outputMap.put(3, numDetections);
+    installPendingInterpreter();
+    resizeInterpreter(1);
+    inputArray[0] = input;
+    outputs.rewind();
     Trace.endSection();
 
     // Run the inference call.
     Trace.beginSection("run");
-    tfLite.runForMultipleInputsOutputs(inputArray, outputMap);
+    tfLite.runForMultipleInputsOutputs(inputArray, outputs.map);
     Trace.endSection();
 
+    decode(outputs, 0, batch);
+  }
+
+  /** Decodes the detections of image {@code image} in {@code outputs} into {@code batch}. */
+  private void decode(final Outputs outputs, final int image, final DetectionBatch batch) {
     // Show the best detections.
     // after scaling them back to the input size.
     // You need to use the number of detections from the output and not the NUM_DETECTONS variable
@@ -220,24 +432,24 @@ public class TFLiteObjectDetectionAPIModel implements Detector {
     // If you don't use the output's numDetections, you'll get nonsensical data
     int numDetectionsOutput =
         min(
-            NUM_DETECTIONS,
-            (int) numDetections[0]); // cast from float to integer, use min for safety
+            min(NUM_DETECTIONS, batch.getCapacity()),
+            // cast from float to integer, use min for safety
+            (int) outputs.numDetections.get(image));
 
-    final ArrayList<Recognition> recognitions = new ArrayList<>(numDetectionsOutput);
+    final int first = image * NUM_DETECTIONS;
     for (int i = 0; i < numDetectionsOutput; ++i) {
-      final RectF detection =
-          new RectF(
-              outputLocations[0][i][1] * inputSize,
-              outputLocations[0][i][0] * inputSize,
-              outputLocations[0][i][3] * inputSize,
-              outputLocations[0][i][2] * inputSize);
-
-      recognitions.add(
-          new Recognition(
-              "" + i, labels.get((int) outputClasses[0][i]), outputScores[0][i], detection));
+      final int box = (first + i) * 4;
+      // Outputs are [top, left, bottom, right] relative to the input size.
+      batch.setBox(
+          i,
+          outputs.locations.get(box + 1) * inputSize,
+          outputs.locations.get(box) * inputSize,
+          outputs.locations.get(box + 3) * inputSize,
+          outputs.locations.get(box + 2) * inputSize);
+      final int classId = (int) outputs.classes.get(first + i);
+      batch.set(i, classId, labels.get(classId), outputs.scores.get(first + i));
     }
-    Trace.endSection(); // "recognizeImage"
-    return recognitions;
+    batch.count = numDetectionsOutput;
   }
 
   @Override
@@ -250,6 +462,17 @@ public class TFLiteObjectDetectionAPIModel implements Detector {
 
   @Override
   public void close() {
+    synchronized (this) {
+      closed = true;
+      if (rebuildExecutor != null) {
+        // A build already under way closes its interpreter once it sees closed.
+        rebuildExecutor.shutdown();
+      }
+    }
+    final Interpreter pending = pendingInterpreter.getAndSet(null);
+    if (pending != null) {
+      pending.close();
+    }
     if (tfLite != null) {
       tfLite.close();
       tfLite = null;
@@ -258,22 +481,202 @@ public class TFLiteObjectDetectionAPIModel implements Detector {
 
   @Override
   public void setNumThreads(int numThreads) {
-    if (tfLite != null) {
-      tfLiteOptions.setNumThreads(numThreads);
-      recreateInterpreter();
+    synchronized (this) {
+      if (tfLite != null) {
+        this.numThreads = numThreads;
+        recreateInterpreter();
+      }
     }
   }
 
   @Override
   public void setUseNNAPI(boolean isChecked) {
-    if (tfLite != null) {
-      tfLiteOptions.setUseNNAPI(isChecked);
-      recreateInterpreter();
+    synchronized (this) {
+      if (tfLite != null) {
+        useNNAPI = isChecked;
+        recreateInterpreter();
+      }
     }
   }
 
+  @Override
+  public void setUseXNNPACK(boolean useXNNPACK) {
+    synchronized (this) {
+      if (tfLite != null) {
+        this.useXNNPACK = useXNNPACK;
+        recreateInterpreter();
+      }
+    }
+  }
+
+  @Override
+  public void setOptions(int numThreads, boolean useXNNPACK, boolean useNNAPI) {
+    synchronized (this) {
+      if (tfLite != null) {
+        this.numThreads = numThreads;
+        this.useXNNPACK = useXNNPACK;
+        this.useNNAPI = useNNAPI;
+        recreateInterpreter();
+      }
+    }
+  }
+
+  @Override
+  public synchronized void setRebuildListener(final RebuildListener listener) {
+    rebuildListener = listener;
+  }
+
+  @Override
+  public long[] benchmark(
+      final int numThreads, final boolean useXNNPACK, final boolean useNNAPI, final int numRuns) {
+    final Interpreter interpreter =
+        new Interpreter(tfLiteModel, newOptions(numThreads, useXNNPACK, useNNAPI));
+    try {
+      final Object[] inputs = {
+        ByteBuffer.allocateDirect(imgData.capacity()).order(ByteOrder.nativeOrder())
+      };
+      final Outputs benchmarkOutputs = new Outputs(1);
+      // Warm up, as the first run is much slower than the rest.
+      interpreter.runForMultipleInputsOutputs(inputs, benchmarkOutputs.map);
+      final long[] durationsNs = new long[numRuns];
+      for (int i = 0; i < numRuns; ++i) {
+        benchmarkOutputs.rewind();
+        final long startNs = System.nanoTime();
+        interpreter.runForMultipleInputsOutputs(inputs, benchmarkOutputs.map);
+        durationsNs[i] = System.nanoTime() - startNs;
+      }
+      return durationsNs;
+    } finally {
+      interpreter.close();
+    }
+  }
+
+  private static Interpreter.Options newOptions(
+      final int numThreads, final boolean useXNNPACK, final boolean useNNAPI) {
+    final Interpreter.Options options = new Interpreter.Options();
+    options.setNumThreads(numThreads);
+    options.setUseXNNPACK(useXNNPACK);
+    options.setUseNNAPI(useNNAPI);
+    return options;
+  }
+
+  /**
+   * Builds and warms up an interpreter with the current options on the rebuild thread, while tfLite
+   * keeps serving, and hands it over through pendingInterpreter. Must hold the lock on this.
+   */
   private void recreateInterpreter() {
-    tfLite.close();
-    tfLite = new Interpreter(tfLiteModel, tfLiteOptions);
+    final int generation = ++interpreterGeneration;
+    final int numThreads = this.numThreads;
+    final boolean useXNNPACK = this.useXNNPACK;
+    final boolean useNNAPI = this.useNNAPI;
+    final int inputBytes = imgData.capacity();
+    if (rebuildExecutor == null) {
+      rebuildExecutor =
+          Executors.newSingleThreadExecutor(
+              runnable -> new Thread(runnable, "interpreter-rebuild"));
+    }
+    rebuildExecutor.execute(
+        () -> {
+          synchronized (this) {
+            if (closed || generation != interpreterGeneration) {
+              // A later setting has already queued its own rebuild.
+              return;
+            }
+          }
+          final Interpreter interpreter;
+          try {
+            interpreter =
+                new Interpreter(tfLiteModel, newOptions(numThreads, useXNNPACK, useNNAPI));
+            // The first run is much slower than the rest, so get it out of the way here.
+            final ByteBuffer input =
+                ByteBuffer.allocateDirect(inputBytes).order(ByteOrder.nativeOrder());
+            interpreter.runForMultipleInputsOutputs(new Object[] {input}, new Outputs(1).map);
+          } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to create interpreter, keeping the previous one", e);
+            final RebuildListener listener;
+            synchronized (this) {
+              if (closed || generation != interpreterGeneration) {
+                return;
+              }
+              this.numThreads = builtNumThreads;
+              this.useXNNPACK = builtUseXNNPACK;
+              this.useNNAPI = builtUseNNAPI;
+              listener = rebuildListener;
+            }
+            if (listener != null) {
+              listener.onRebuildFailed(e);
+            }
+            return;
+          }
+          synchronized (this) {
+            if (closed || generation != interpreterGeneration) {
+              interpreter.close();
+              return;
+            }
+            builtNumThreads = numThreads;
+            builtUseXNNPACK = useXNNPACK;
+            builtUseNNAPI = useNNAPI;
+            final Interpreter superseded = pendingInterpreter.getAndSet(interpreter);
+            if (superseded != null) {
+              superseded.close();
+            }
+          }
+        });
+  }
+
+  /** Replaces tfLite with a rebuilt interpreter, if one is ready. Called before each run. */
+  private void installPendingInterpreter() {
+    final Interpreter interpreter = pendingInterpreter.getAndSet(null);
+    if (interpreter != null) {
+      // The previous interpreter's last run has returned, as runs happen on this thread.
+      tfLite.close();
+      tfLite = interpreter;
+      interpreterBatchSize = 1;
+    }
+  }
+
+  /** Output buffers for one batch size, bound once and reused for every run. */
+  private static final class Outputs {
+    final int batchSize;
+    // The outputs are bound as direct buffers that the interpreter copies into, and are read
+    // through float views of them.
+    // locations: array of shape [Batchsize, NUM_DETECTIONS,4]
+    // contains the location of detected boxes
+    final FloatBuffer locations;
+    // classes: array of shape [Batchsize, NUM_DETECTIONS]
+    // contains the classes of detected boxes
+    final FloatBuffer classes;
+    // scores: array of shape [Batchsize, NUM_DETECTIONS]
+    // contains the scores of detected boxes
+    final FloatBuffer scores;
+    // numDetections: array of shape [Batchsize]
+    // contains the number of detected boxes
+    final FloatBuffer numDetections;
+    final Map<Integer, Object> map = new HashMap<>();
+    private final ByteBuffer[] buffers = new ByteBuffer[4];
+
+    Outputs(final int batchSize) {
+      this.batchSize = batchSize;
+      locations = bind(0, batchSize * NUM_DETECTIONS * 4);
+      classes = bind(1, batchSize * NUM_DETECTIONS);
+      scores = bind(2, batchSize * NUM_DETECTIONS);
+      numDetections = bind(3, batchSize);
+    }
+
+    /** Allocates the direct buffer for output {@code index} and returns a float view of it. */
+    private FloatBuffer bind(final int index, final int numFloats) {
+      final ByteBuffer buffer =
+          ByteBuffer.allocateDirect(numFloats * 4).order(ByteOrder.nativeOrder());
+      buffers[index] = buffer;
+      map.put(index, buffer);
+      return buffer.asFloatBuffer();
+    }
+
+    /** Rewinds the buffers, as the interpreter writes outputs from their positions. */
+    void rewind() {
+      for (final ByteBuffer buffer : buffers) {
+        buffer.rewind();
+      }
+    }
   }
 }
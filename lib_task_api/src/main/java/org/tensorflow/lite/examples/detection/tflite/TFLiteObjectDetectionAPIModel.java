@@ -17,13 +17,24 @@ package org.tensorflow.lite.examples.detection.tflite;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.RectF;
 import android.os.Trace;
+import android.util.Log;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import org.tensorflow.lite.DataType;
 import org.tensorflow.lite.support.common.FileUtil;
+import org.tensorflow.lite.support.label.Category;
 import org.tensorflow.lite.support.image.TensorImage;
+import org.tensorflow.lite.support.tensorbuffer.TensorBuffer;
 import org.tensorflow.lite.task.vision.detector.Detection;
 import org.tensorflow.lite.task.vision.detector.ObjectDetector;
 import org.tensorflow.lite.task.vision.detector.ObjectDetector.ObjectDetectorOptions;
@@ -53,17 +64,51 @@ public class TFLiteObjectDetectionAPIModel implements Detector {
 
   private final MappedByteBuffer modelBuffer;
 
+  /** Width and height of the RGB images accepted by {@link #recognizeImage(ByteBuffer)}. */
+  private final int inputSize;
+
   /** An instance of the driver class to run model inference with Tensorflow Lite. */
   private ObjectDetector objectDetector;
 
   /** Builder of the options used to config the ObjectDetector. */
   private final ObjectDetectorOptions.Builder optionsBuilder;
 
+  /** Thread count of the latest detector built, which optionsBuilder reverts to on failure. */
+  private int builtNumThreads;
+
+  /**
+   * Counts the detectors requested, so that a rebuild that has been overtaken by a later one is
+   * skipped or dropped rather than installed.
+   */
+  private int detectorGeneration;
+
+  private boolean closed;
+
+  /** Builds the rebuilt detectors one at a time, started with the first rebuild. */
+  private ExecutorService rebuildExecutor;
+
+  private RebuildListener rebuildListener;
+
+  /** Detector built in the background to replace objectDetector before the next detection. */
+  private final AtomicReference<ObjectDetector> pendingDetector = new AtomicReference<>();
+
+  /** Reused input of {@link #recognizeImage(ByteBuffer, DetectionBatch)}. */
+  private final TensorBuffer inputBuffer;
+
+  private final TensorImage inputImage = new TensorImage(DataType.UINT8);
+
+  /**
+   * Class ids handed out to labels as they are first detected, as the Task library reports labels
+   * but not their index in the label map.
+   */
+  private final Map<String, Integer> classIds = new HashMap<>();
+
   /**
    * Initializes a native TensorFlow session for classifying images.
    *
-   * <p>{@code labelFilename}, {@code inputSize}, and {@code isQuantized}, are NOT required, but to
-   * keep consistency with the implementation using the TFLite Interpreter Java API. See <a
+   * <p>{@code labelFilename} and {@code isQuantized} are NOT required, and {@code inputSize} is only
+   * used by {@link #recognizeImage(ByteBuffer)}, but they keep consistency with the implementation
+   * using the TFLite Interpreter Java API. See <a
    * href="https://github.com/tensorflow/examples/blob/master/lite/examples/object_detection/android/lib_interpreter/src/main/java/org/tensorflow/lite/examples/detection/tflite/TFLiteObjectDetectionAPIModel.java">lib_interpreter</a>.
    *
    * @param modelFilename The model file path relative to the assets folder
@@ -78,37 +123,120 @@ public class TFLiteObjectDetectionAPIModel implements Detector {
       final int inputSize,
       final boolean isQuantized)
       throws IOException {
-    return new TFLiteObjectDetectionAPIModel(context, modelFilename);
+    return createPool(context, modelFilename, labelFilename, inputSize, isQuantized, 1, -1).get(0);
   }
 
-  private TFLiteObjectDetectionAPIModel(Context context, String modelFilename) throws IOException {
-    modelBuffer = FileUtil.loadMappedFile(context, modelFilename);
-    optionsBuilder = ObjectDetectorOptions.builder().setMaxResults(NUM_DETECTIONS);
+  /**
+   * Initializes {@code numDetectors} detectors over a single mapping of the model, which split
+   * {@code numThreads} inference threads between them, or use the Task library's default if it is
+   * -1. Each detector must only be used from one thread at a time, but different detectors can run
+   * concurrently.
+   *
+   * @see #create(Context, String, String, int, boolean)
+   */
+  public static List<Detector> createPool(
+      final Context context,
+      final String modelFilename,
+      final String labelFilename,
+      final int inputSize,
+      final boolean isQuantized,
+      final int numDetectors,
+      final int numThreads)
+      throws IOException {
+    final MappedByteBuffer modelBuffer = FileUtil.loadMappedFile(context, modelFilename);
+    final int threadsPerDetector = numThreads < 0 ? -1 : Math.max(1, numThreads / numDetectors);
+    final List<Detector> detectors = new ArrayList<>(numDetectors);
+    for (int i = 0; i < numDetectors; ++i) {
+      detectors.add(new TFLiteObjectDetectionAPIModel(modelBuffer, inputSize, threadsPerDetector));
+    }
+    return detectors;
+  }
+
+  private TFLiteObjectDetectionAPIModel(
+      MappedByteBuffer modelBuffer, int inputSize, int numThreads) {
+    this.inputSize = inputSize;
+    this.modelBuffer = modelBuffer;
+    builtNumThreads = numThreads;
+    optionsBuilder =
+        ObjectDetectorOptions.builder().setMaxResults(NUM_DETECTIONS).setNumThreads(numThreads);
     objectDetector = ObjectDetector.createFromBufferAndOptions(modelBuffer, optionsBuilder.build());
+    inputBuffer = TensorBuffer.createFixedSize(new int[] {inputSize, inputSize, 3}, DataType.UINT8);
   }
 
   @Override
   public List<Recognition> recognizeImage(final Bitmap bitmap) {
+    final DetectionBatch batch = new DetectionBatch(NUM_DETECTIONS);
+    recognizeImage(bitmap, batch);
+    return batch.toRecognitions();
+  }
+
+  @Override
+  public List<Recognition> recognizeImage(final ByteBuffer rgbBytes) {
+    final DetectionBatch batch = new DetectionBatch(NUM_DETECTIONS);
+    recognizeImage(rgbBytes, batch);
+    return batch.toRecognitions();
+  }
+
+  @Override
+  public void recognizeImage(final Bitmap bitmap, final DetectionBatch batch) {
     // Log this method so that it can be analyzed with systrace.
     Trace.beginSection("recognizeImage");
-    List<Detection> results = objectDetector.detect(TensorImage.fromBitmap(bitmap));
+    detect(TensorImage.fromBitmap(bitmap), batch);
+    Trace.endSection(); // "recognizeImage"
+  }
+
+  @Override
+  public void recognizeImage(final ByteBuffer rgbBytes, final DetectionBatch batch) {
+    // Log this method so that it can be analyzed with systrace.
+    Trace.beginSection("recognizeImage");
+    rgbBytes.rewind();
+    inputBuffer.loadBuffer(rgbBytes);
+    inputImage.load(inputBuffer);
+    detect(inputImage, batch);
+    Trace.endSection(); // "recognizeImage"
+  }
 
-    // Converts a list of {@link Detection} objects into a list of {@link Recognition} objects
-    // to match the interface of other inference method, such as using the <a
+  @Override
+  public List<List<Recognition>> recognizeImages(final List<Bitmap> bitmaps) {
+    final List<List<Recognition>> recognitions = new ArrayList<>(bitmaps.size());
+    for (final Bitmap bitmap : bitmaps) {
+      recognitions.add(recognizeImage(bitmap));
+    }
+    return recognitions;
+  }
+
+  @Override
+  public void recognizeImages(final List<Bitmap> bitmaps, final DetectionBatch[] batches) {
+    // The Task library takes one image per call, so the images run one after another.
+    for (int i = 0; i < bitmaps.size(); ++i) {
+      recognizeImage(bitmaps.get(i), batches[i]);
+    }
+  }
+
+  private void detect(final TensorImage image, final DetectionBatch batch) {
+    installPendingDetector();
+    // The Task library allocates its own results, but they are only read here.
+    List<Detection> results = objectDetector.detect(image);
+
+    // Converts the {@link Detection} objects into a batch, to match the interface of other
+    // inference method, such as using the <a
     // href="https://github.com/tensorflow/examples/tree/master/lite/examples/object_detection/android/lib_interpreter">TFLite
     // Java API.</a>.
-    final ArrayList<Recognition> recognitions = new ArrayList<>();
-    int cnt = 0;
-    for (Detection detection : results) {
-      recognitions.add(
-          new Recognition(
-              "" + cnt++,
-              detection.getCategories().get(0).getLabel(),
-              detection.getCategories().get(0).getScore(),
-              detection.getBoundingBox()));
+    final int count = Math.min(results.size(), batch.getCapacity());
+    for (int i = 0; i < count; ++i) {
+      final Detection detection = results.get(i);
+      final Category category = detection.getCategories().get(0);
+      final String label = category.getLabel();
+      Integer classId = classIds.get(label);
+      if (classId == null) {
+        classId = classIds.size();
+        classIds.put(label, classId);
+      }
+      final RectF box = detection.getBoundingBox();
+      batch.setBox(i, box);
+      batch.set(i, classId, label, category.getScore());
     }
-    Trace.endSection(); // "recognizeImage"
-    return recognitions;
+    batch.count = count;
   }
 
   @Override
@@ -121,6 +249,17 @@ public class TFLiteObjectDetectionAPIModel implements Detector {
 
   @Override
   public void close() {
+    synchronized (this) {
+      closed = true;
+      if (rebuildExecutor != null) {
+        // A build already under way closes its detector once it sees closed.
+        rebuildExecutor.shutdown();
+      }
+    }
+    final ObjectDetector pending = pendingDetector.getAndSet(null);
+    if (pending != null) {
+      pending.close();
+    }
     if (objectDetector != null) {
       objectDetector.close();
     }
@@ -128,9 +267,11 @@ public class TFLiteObjectDetectionAPIModel implements Detector {
 
   @Override
   public void setNumThreads(int numThreads) {
-    if (objectDetector != null) {
-      optionsBuilder.setNumThreads(numThreads);
-      recreateDetector();
+    synchronized (this) {
+      if (objectDetector != null) {
+        optionsBuilder.setNumThreads(numThreads);
+        recreateDetector(numThreads);
+      }
     }
   }
 
@@ -141,8 +282,102 @@ public class TFLiteObjectDetectionAPIModel implements Detector {
             + " library currently. Only CPU is allowed.");
   }
 
-  private void recreateDetector() {
-    objectDetector.close();
-    objectDetector = ObjectDetector.createFromBufferAndOptions(modelBuffer, optionsBuilder.build());
+  @Override
+  public void setUseXNNPACK(boolean useXNNPACK) {
+    throw new UnsupportedOperationException(
+        "Manipulating the hardware accelerators is not allowed in the Task"
+            + " library currently. Only CPU is allowed.");
+  }
+
+  /**
+   * Sets the number of threads. The Task library picks its CPU delegate itself, so {@code
+   * useXNNPACK} is ignored, and NNAPI is not supported.
+   */
+  @Override
+  public void setOptions(int numThreads, boolean useXNNPACK, boolean useNNAPI) {
+    if (useNNAPI) {
+      throw new UnsupportedOperationException(
+          "Manipulating the hardware accelerators is not allowed in the Task"
+              + " library currently. Only CPU is allowed.");
+    }
+    setNumThreads(numThreads);
+  }
+
+  @Override
+  public synchronized void setRebuildListener(final RebuildListener listener) {
+    rebuildListener = listener;
+  }
+
+  @Override
+  public long[] benchmark(int numThreads, boolean useXNNPACK, boolean useNNAPI, int numRuns) {
+    throw new UnsupportedOperationException(
+        "Benchmarking interpreter options is not supported with the Task library.");
+  }
+
+  /**
+   * Builds and warms up a detector with the current options on the rebuild thread, while
+   * objectDetector keeps serving, and hands it over through pendingDetector. Must hold the lock on
+   * this.
+   */
+  private void recreateDetector(final int numThreads) {
+    final int generation = ++detectorGeneration;
+    final ObjectDetectorOptions options = optionsBuilder.build();
+    if (rebuildExecutor == null) {
+      rebuildExecutor =
+          Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "detector-rebuild"));
+    }
+    rebuildExecutor.execute(
+        () -> {
+          synchronized (this) {
+            if (closed || generation != detectorGeneration) {
+              // A later setting has already queued its own rebuild.
+              return;
+            }
+          }
+          final ObjectDetector detector;
+          try {
+            detector = ObjectDetector.createFromBufferAndOptions(modelBuffer, options);
+            // The first detection is much slower than the rest, so get it out of the way here.
+            final TensorImage blank = new TensorImage(DataType.UINT8);
+            blank.load(
+                TensorBuffer.createFixedSize(new int[] {inputSize, inputSize, 3}, DataType.UINT8));
+            detector.detect(blank);
+          } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to create detector, keeping the previous one", e);
+            final RebuildListener listener;
+            synchronized (this) {
+              if (closed || generation != detectorGeneration) {
+                return;
+              }
+              optionsBuilder.setNumThreads(builtNumThreads);
+              listener = rebuildListener;
+            }
+            if (listener != null) {
+              listener.onRebuildFailed(e);
+            }
+            return;
+          }
+          synchronized (this) {
+            if (closed || generation != detectorGeneration) {
+              detector.close();
+              return;
+            }
+            builtNumThreads = numThreads;
+            final ObjectDetector superseded = pendingDetector.getAndSet(detector);
+            if (superseded != null) {
+              superseded.close();
+            }
+          }
+        });
+  }
+
+  /** Replaces objectDetector with a rebuilt detector, if one is ready. */
+  private void installPendingDetector() {
+    final ObjectDetector detector = pendingDetector.getAndSet(null);
+    if (detector != null) {
+      // The previous detector's last detection has returned, as detections happen on this thread.
+      objectDetector.close();
+      objectDetector = detector;
+    }
   }
 }